@@ -0,0 +1,141 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.Collator;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks CollatorWrapper comparisons, the way layouts and activities are sorted
+ * when received by a listener, compared to building a LayoutSet. The *Unique benchmarks
+ * sort names that are not repeated within CollatorWrapper.KEY_CACHE_SIZE names, where
+ * caching collation keys does not pay off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CollatorWrapperBenchmark {
+    /** Number of names per set */
+    @Param({"10", "100", "1000"})
+    public int count;
+
+    /** Number of distinct name sets the *Unique benchmarks cycle through */
+    private static final int UNIQUE_ROUNDS = 64;
+
+    private String[] names;
+    /** UNIQUE_ROUNDS sets of count names each, all distinct */
+    private String[][] uniqueNames;
+    private int uniqueRound;
+    private CollatorWrapper collator;
+    private LayoutSet layouts;
+    private TreeSet<String> collatedLayouts;
+
+    @Setup
+    public void setUp() {
+        names = SyntheticTrees.names(count, 42L);
+        collator = new CollatorWrapper();
+        layouts = LayoutSet.of(names);
+        collatedLayouts = layouts.toCollatedSet();
+        uniqueNames = new String[UNIQUE_ROUNDS][count];
+        for (int round = 0; round < UNIQUE_ROUNDS; ++round) {
+            for (int i = 0; i < count; ++i)
+                uniqueNames[round][i] = names[i] + '#' + round;
+        }
+    }
+
+    @Benchmark
+    public int compare() {
+        int result = 0;
+        for (int i = 1; i < names.length; ++i)
+            result += collator.compare(names[i - 1], names[i]);
+        return result;
+    }
+
+    @Benchmark
+    public TreeSet<String> buildTreeSet() {
+        TreeSet<String> result = new TreeSet<>(new CollatorWrapper());
+        for (String name : names)
+            result.add(name);
+        return result;
+    }
+
+    @Benchmark
+    public TreeSet<String> buildTreeSetUnique() {
+        String[] names = nextUniqueNames();
+        TreeSet<String> result = new TreeSet<>(new CollatorWrapper());
+        for (String name : names)
+            result.add(name);
+        return result;
+    }
+
+    /** Baseline: same names compared by a new Collator directly, as before keys were cached */
+    @Benchmark
+    public TreeSet<String> buildTreeSetUniqueCollator() {
+        String[] names = nextUniqueNames();
+        TreeSet<String> result = new TreeSet<>(Collator.getInstance());
+        for (String name : names)
+            result.add(name);
+        return result;
+    }
+
+    @Benchmark
+    public LayoutSet buildLayoutSet() {
+        return LayoutSet.of(names);
+    }
+
+    @Benchmark
+    public boolean layoutSetContains() {
+        return layouts.contains(names[names.length / 2]);
+    }
+
+    /** Answered by the set's Bloom filter for larger sets */
+    @Benchmark
+    public boolean layoutSetContainsMissing() {
+        return layouts.contains("missing_layout");
+    }
+
+    @Benchmark
+    public boolean treeSetContains() {
+        return collatedLayouts.contains(names[names.length / 2]);
+    }
+
+    /** Baseline: same set using the natural String order */
+    @Benchmark
+    public TreeSet<String> buildTreeSetNaturalOrder() {
+        TreeSet<String> result = new TreeSet<>();
+        for (String name : names)
+            result.add(name);
+        return result;
+    }
+
+    private String[] nextUniqueNames() {
+        uniqueRound = (uniqueRound + 1) % UNIQUE_ROUNDS;
+        return uniqueNames[uniqueRound];
+    }
+}
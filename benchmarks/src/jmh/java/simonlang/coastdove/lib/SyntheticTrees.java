@@ -0,0 +1,113 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Generates view trees and names resembling those sent by Coast Dove core
+ */
+public final class SyntheticTrees {
+    /** Class names assigned to the nodes, in turns */
+    static final String[] CLASS_NAMES = {
+            "android.widget.FrameLayout", "android.widget.LinearLayout",
+            "android.widget.TextView", "android.widget.ImageView",
+            "android.widget.Button", "android.widget.TextView"
+    };
+
+    private SyntheticTrees() {
+    }
+
+    /** Resource ID of the node with the given index */
+    public static String resourceID(int index) {
+        return "com.example.app:id/node_" + index;
+    }
+
+    /**
+     * Builds a tree with exactly the given number of nodes. Nodes are attached to random
+     * parents that have not yet reached the maximum depth or fan-out.
+     * @param size      Number of nodes
+     * @param depth     Maximum depth (the root has depth 1)
+     * @param fanOut    Maximum number of children per node
+     * @param seed      Seed for the random number generator, the same seed yields the same tree
+     * @return Root of the tree, its nodes have resource IDs resourceID(0) to resourceID(size - 1)
+     */
+    public static ViewTreeNode build(int size, int depth, int fanOut, long seed) {
+        Random random = new Random(seed);
+        ArrayList<ViewTreeNode> open = new ArrayList<>();
+        ArrayList<Integer> openDepths = new ArrayList<>();
+
+        ViewTreeNode root = createNode(0, null);
+        open.add(root);
+        openDepths.add(1);
+        for (int i = 1; i < size; ++i) {
+            if (open.isEmpty())
+                throw new IllegalArgumentException("A tree of depth " + depth + " and fan-out "
+                        + fanOut + " cannot hold " + size + " nodes");
+            int parentIndex = random.nextInt(open.size());
+            ViewTreeNode parent = open.get(parentIndex);
+            int parentDepth = openDepths.get(parentIndex);
+
+            ViewTreeNode node = createNode(i, parent);
+            parent.getChildren().add(node);
+            if (parent.getChildCount() >= fanOut) {
+                open.set(parentIndex, open.get(open.size() - 1));
+                openDepths.set(parentIndex, openDepths.get(openDepths.size() - 1));
+                open.remove(open.size() - 1);
+                openDepths.remove(openDepths.size() - 1);
+            }
+            if (parentDepth + 1 < depth) {
+                open.add(node);
+                openDepths.add(parentDepth + 1);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Generates names resembling activities or layouts, e.g. "com.example.app/.ui.Screen42Activity"
+     * @param count    Number of names
+     * @param seed     Seed for the random number generator
+     */
+    public static String[] names(int count, long seed) {
+        Random random = new Random(seed);
+        String[] result = new String[count];
+        for (int i = 0; i < count; ++i)
+            result[i] = "com.example.app/.ui." + (char)('a' + random.nextInt(26)) + ".Screen"
+                    + random.nextInt(count * 10) + (random.nextBoolean() ? "Activity" : "Layout");
+        return result;
+    }
+
+    private static ViewTreeNode createNode(int index, ViewTreeNode parent) {
+        ViewTreeNode node = new ViewTreeNode();
+        node.setParent(parent);
+        node.setChildren(new ArrayList<ViewTreeNode>());
+        node.setViewIDResourceName(resourceID(index));
+        node.setClassName(CLASS_NAMES[index % CLASS_NAMES.length]);
+        node.setText(index % 3 == 0 ? "Item " + index : null);
+        node.setBoundsInScreen(new Rect(0, index * 10, 100, index * 10 + 10));
+        node.setBoundsInParent(new Rect(0, 0, 100, 10));
+        node.setEnabled(true);
+        node.setVisibleToUser(true);
+        return node;
+    }
+}
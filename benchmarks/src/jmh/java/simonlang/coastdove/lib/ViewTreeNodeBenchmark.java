@@ -0,0 +1,128 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks searching, flattening and printing synthetic view trees
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ViewTreeNodeBenchmark {
+    /** Number of nodes in the tree */
+    @Param({"100", "1000", "5000"})
+    public int size;
+    /** Maximum depth of the tree */
+    @Param({"8", "16"})
+    public int depth;
+    /** Maximum number of children per node */
+    @Param({"4"})
+    public int fanOut;
+
+    private ViewTreeNode tree;
+    private ViewTreeNode deepestNode;
+    private ViewTreeNode.Filter lastNodeFilter;
+    private ViewTreeNode.Filter missingNodeFilter;
+    private ViewTreeNode.Filter textViewFilter;
+
+    @Setup
+    public void setUp() {
+        tree = SyntheticTrees.build(size, depth, fanOut, 42L);
+
+        final String lastResourceID = SyntheticTrees.resourceID(size - 1);
+        lastNodeFilter = new ViewTreeNode.Filter() {
+            @Override
+            public boolean filter(ViewTreeNode node) {
+                return lastResourceID.equals(node.getViewIDResourceName());
+            }
+        };
+        missingNodeFilter = new ViewTreeNode.Filter() {
+            @Override
+            public boolean filter(ViewTreeNode node) {
+                return "com.example.app:id/missing".equals(node.getViewIDResourceName());
+            }
+        };
+        textViewFilter = new ViewTreeNode.Filter() {
+            @Override
+            public boolean filter(ViewTreeNode node) {
+                return "android.widget.TextView".equals(node.getClassName());
+            }
+        };
+
+        // Built on the first query, not measured here
+        tree.getResourceIDFilter();
+
+        deepestNode = tree;
+        while (deepestNode.hasChildren())
+            deepestNode = deepestNode.getChild(deepestNode.getChildCount() - 1);
+    }
+
+    @Benchmark
+    public ViewTreeNode findNodeLast() {
+        return tree.findNode(lastNodeFilter);
+    }
+
+    @Benchmark
+    public ViewTreeNode findNodeMissing() {
+        return tree.findNode(missingNodeFilter);
+    }
+
+    /** Same lookup as findNodeMissing, answered by the tree's Bloom filter */
+    @Benchmark
+    public boolean containsResourceIDMissing() {
+        return tree.containsResourceID("com.example.app:id/missing");
+    }
+
+    @Benchmark
+    public boolean mightContainResourceIDMissing() {
+        return tree.mightContainResourceID("com.example.app:id/missing");
+    }
+
+    @Benchmark
+    public boolean containsResourceIDLast() {
+        return tree.containsResourceID(SyntheticTrees.resourceID(size - 1));
+    }
+
+    @Benchmark
+    public List<ViewTreeNode> findNodes() {
+        return tree.findNodes(textViewFilter);
+    }
+
+    @Benchmark
+    public ViewTreeNode getFlatNode() {
+        return deepestNode.getFlatNode();
+    }
+
+    @Benchmark
+    public String toStringTree() {
+        return tree.toString();
+    }
+}
@@ -0,0 +1,68 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Listener service driven by SyntheticCore in load tests, counts the callbacks it receives
+ */
+public class LoadTestListenerService extends CoastDoveListenerService {
+    /** Instance currently bound, null if none */
+    static volatile LoadTestListenerService sInstance;
+    /** Number of event callbacks received since the last reset */
+    static final AtomicInteger sCallbacks = new AtomicInteger();
+
+    @Override
+    protected void onServiceBound() {
+        sInstance = this;
+    }
+
+    @Override
+    protected void onServiceUnbound() {
+        sInstance = null;
+    }
+
+    @Override
+    protected void onActivityDetected(String activity) {
+        sCallbacks.incrementAndGet();
+    }
+
+    @Override
+    protected void onLayoutsDetected(Set<String> layouts) {
+        sCallbacks.incrementAndGet();
+    }
+
+    @Override
+    protected void onInteractionDetected(Collection<InteractionEventData> interaction, EventType eventType) {
+        sCallbacks.incrementAndGet();
+    }
+
+    @Override
+    protected void onViewTreeReceived(ViewTreeNode viewTree) {
+        sCallbacks.incrementAndGet();
+    }
+
+    @Override
+    protected void onScrollPositionDetected(ScrollPosition scrollPosition) {
+        sCallbacks.incrementAndGet();
+    }
+}
@@ -0,0 +1,437 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.graphics.Rect;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for the Coast Dove core in tests: binds a CoastDoveListenerService running in the
+ * same process and floods it with generated messages at a given rate. Bundles are parcelled
+ * before sending, so the service decodes them just like data coming from the real core.
+ * Latency is measured by probes posted to the service's looper in between the messages.
+ */
+public class SyntheticCore {
+    /** Package name of the (non-existent) app the generated events belong to */
+    public static final String TARGET_PACKAGE_NAME = "com.example.target";
+
+    /** Context used for binding */
+    private Context mContext;
+    /** Messenger of the bound service, null if not bound */
+    private Messenger mService;
+    /** Connection to the bound service */
+    private ServiceConnection mConnection;
+    /** Receives requests sent by the service */
+    private HandlerThread mReplyThread;
+    /** Number of requests received from the service */
+    private final AtomicInteger mRequestsReceived = new AtomicInteger();
+    /** Random number generator for generated data */
+    private final Random mRandom = new Random(42L);
+
+    /** Messages per second, 0 for as fast as possible */
+    private int mRate = 0;
+    /** Number of layouts per MSG_LAYOUTS_DETECTED */
+    private int mLayoutsPerEvent = 8;
+    /** Number of InteractionEventData per MSG_INTERACTION_DETECTED */
+    private int mInteractionsPerEvent = 2;
+    /** Number of nodes per MSG_VIEW_TREE */
+    private int mViewTreeSize = 200;
+    /** Maximum depth of generated view trees */
+    private int mViewTreeDepth = 12;
+    /** Maximum number of children per node of generated view trees */
+    private int mViewTreeFanOut = 4;
+    /** A latency probe is posted after every this many messages */
+    private int mProbeInterval = 25;
+
+    /**
+     * Creates a synthetic core
+     * @param context    Context of the test, the service must be declared in its manifest
+     */
+    public SyntheticCore(Context context) {
+        mContext = context;
+    }
+
+    /** Sets the number of messages sent per second, 0 for as fast as possible (default) */
+    public void setRate(int messagesPerSecond) {
+        mRate = messagesPerSecond;
+    }
+
+    /** Sets the number of layouts per MSG_LAYOUTS_DETECTED (default: 8) */
+    public void setLayoutsPerEvent(int layoutsPerEvent) {
+        mLayoutsPerEvent = layoutsPerEvent;
+    }
+
+    /** Sets the number of InteractionEventData per MSG_INTERACTION_DETECTED (default: 2) */
+    public void setInteractionsPerEvent(int interactionsPerEvent) {
+        mInteractionsPerEvent = interactionsPerEvent;
+    }
+
+    /**
+     * Sets the shape of the view trees sent with MSG_VIEW_TREE (default: 200 nodes,
+     * depth 12, fan-out 4)
+     */
+    public void setViewTreeShape(int size, int depth, int fanOut) {
+        mViewTreeSize = size;
+        mViewTreeDepth = depth;
+        mViewTreeFanOut = fanOut;
+    }
+
+    /**
+     * Binds the given service and introduces itself as the core, i.e., sends MSG_REPLY_TO,
+     * enables TARGET_PACKAGE_NAME and opens it. Blocks until the service is connected, must
+     * not be called on the main thread.
+     * @param serviceClass    Service to bind, must run in the same process as the test
+     * @throws InterruptedException if interrupted while waiting for the connection
+     */
+    public void bind(Class<? extends CoastDoveListenerService> serviceClass) throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        mConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                mService = new Messenger(service);
+                connected.countDown();
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                mService = null;
+            }
+        };
+        if (!mContext.bindService(new Intent(mContext, serviceClass), mConnection, Context.BIND_AUTO_CREATE))
+            throw new IllegalStateException("Unable to bind " + serviceClass.getName());
+        if (!connected.await(10, TimeUnit.SECONDS))
+            throw new IllegalStateException("Timed out binding " + serviceClass.getName());
+
+        mReplyThread = new HandlerThread("SyntheticCoreReplies");
+        mReplyThread.start();
+        Handler replyHandler = new Handler(mReplyThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                mRequestsReceived.incrementAndGet();
+            }
+        };
+
+        Bundle data = new Bundle();
+        data.putString(CoastDoveListenerService.DATA_APP_PACKAGE_NAME, TARGET_PACKAGE_NAME);
+        Message msg = Message.obtain(null, CoastDoveListenerService.MSG_REPLY_TO
+                | CoastDoveListenerService.MSG_APP_ENABLED | CoastDoveListenerService.MSG_APP_OPENED, 0, 0);
+        msg.replyTo = new Messenger(replyHandler);
+        msg.setData(parcelled(data));
+        send(msg);
+    }
+
+    /** Unbinds the service */
+    public void unbind() {
+        if (mConnection != null)
+            mContext.unbindService(mConnection);
+        if (mReplyThread != null)
+            mReplyThread.quit();
+        mConnection = null;
+        mReplyThread = null;
+        mService = null;
+    }
+
+    /**
+     * Sends messages to the bound service and waits until all of them have been handled.
+     * Must not be called on the main thread.
+     * @param messageTypes    MSG_* constants (or-ed) to send, taking turns
+     * @param count           Number of messages to send
+     * @return Throughput, latency and heap growth measured
+     * @throws InterruptedException if interrupted while waiting for the service
+     */
+    public Report run(int messageTypes, int count) throws InterruptedException {
+        int[] types = new int[Integer.bitCount(messageTypes)];
+        for (int i = 0, bits = messageTypes; bits != 0; ++i, bits &= bits - 1)
+            types[i] = Integer.lowestOneBit(bits);
+        if (types.length == 0)
+            throw new IllegalArgumentException("No message types given");
+
+        // Messages are built up front so that generating them is not measured
+        Bundle[] bundles = new Bundle[count];
+        for (int i = 0; i < count; ++i)
+            bundles[i] = createData(types[i % types.length], i);
+
+        Handler serviceLooper = new Handler(Looper.getMainLooper());
+        final long[] probeLatencies = new long[count / mProbeInterval + 1];
+        final AtomicInteger probes = new AtomicInteger();
+        long heapBefore = usedHeap();
+        int requestsBefore = mRequestsReceived.get();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        long intervalNanos = mRate > 0 ? 1000000000L / mRate : 0L;
+        for (int i = 0; i < count; ++i) {
+            if (intervalNanos > 0L) {
+                long due = start + i * intervalNanos;
+                long now;
+                while ((now = SystemClock.elapsedRealtimeNanos()) < due)
+                    LockSupport.parkNanos(due - now);
+            }
+            Message msg = Message.obtain(null, types[i % types.length], 0, 0);
+            CoastDoveListenerService.putTimestamps(bundles[i], SystemClock.elapsedRealtimeNanos());
+            msg.setData(parcelled(bundles[i]));
+            send(msg);
+
+            if (i % mProbeInterval == 0) {
+                final long postedAt = SystemClock.elapsedRealtimeNanos();
+                serviceLooper.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        int probe = probes.getAndIncrement();
+                        if (probe < probeLatencies.length)
+                            probeLatencies[probe] = SystemClock.elapsedRealtimeNanos() - postedAt;
+                    }
+                });
+            }
+        }
+        long sent = SystemClock.elapsedRealtimeNanos();
+
+        // The service handles messages in order on the main looper, so once this runs,
+        // everything sent before has been handled
+        final CountDownLatch drained = new CountDownLatch(1);
+        serviceLooper.post(new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        if (!drained.await(60, TimeUnit.SECONDS))
+            throw new IllegalStateException("Service did not handle all messages in time");
+        long end = SystemClock.elapsedRealtimeNanos();
+
+        long heapAfter = usedHeap();
+        long[] latencies = Arrays.copyOf(probeLatencies, Math.min(probes.get(), probeLatencies.length));
+        Arrays.sort(latencies);
+        return new Report(count, sent - start, end - start, latencies, heapAfter - heapBefore,
+                mRequestsReceived.get() - requestsBefore);
+    }
+
+    /** Creates the data for a message of the given type */
+    private Bundle createData(int messageType, int index) {
+        Bundle data = new Bundle();
+        switch (messageType) {
+            case CoastDoveListenerService.MSG_ACTIVITY_DETECTED:
+                data.putString(CoastDoveListenerService.DATA_ACTIVITY,
+                        TARGET_PACKAGE_NAME + "/.Activity" + mRandom.nextInt(20));
+                break;
+            case CoastDoveListenerService.MSG_LAYOUTS_DETECTED:
+                String[] layouts = new String[mLayoutsPerEvent];
+                for (int i = 0; i < layouts.length; ++i)
+                    layouts[i] = "layout_" + mRandom.nextInt(mLayoutsPerEvent * 4);
+                data.putStringArray(CoastDoveListenerService.DATA_LAYOUTS, layouts);
+                break;
+            case CoastDoveListenerService.MSG_INTERACTION_DETECTED:
+                InteractionEventData[] interaction = new InteractionEventData[mInteractionsPerEvent];
+                for (int i = 0; i < interaction.length; ++i)
+                    interaction[i] = new InteractionEventData(TARGET_PACKAGE_NAME + ":id/button_" + i,
+                            "Button " + i, null, "android.widget.Button");
+                data.putParcelableArray(CoastDoveListenerService.DATA_INTERACTION, interaction);
+                data.putString(CoastDoveListenerService.DATA_EVENT_TYPE, EventType.CLICK.name());
+                break;
+            case CoastDoveListenerService.MSG_NOTIFICATION_DETECTED:
+                data.putString(CoastDoveListenerService.DATA_NOTIFICATION, "Notification " + index);
+                break;
+            case CoastDoveListenerService.MSG_VIEW_TREE:
+                data.putParcelable(CoastDoveListenerService.DATA_VIEW_TREE,
+                        createViewTree(mViewTreeSize, mViewTreeDepth, mViewTreeFanOut));
+                break;
+            case CoastDoveListenerService.MSG_SCROLL_POSITION_DETECTED:
+                int from = mRandom.nextInt(100);
+                data.putParcelable(CoastDoveListenerService.DATA_SCROLL_POSITION,
+                        new ScrollPosition(from, from + 10, 200));
+                break;
+            case CoastDoveListenerService.MSG_SCREEN_STATE_DETECTED:
+                data.putBoolean(CoastDoveListenerService.DATA_SCREEN_OFF, false);
+                break;
+            case CoastDoveListenerService.MSG_APP_OPENED:
+                data.putString(CoastDoveListenerService.DATA_APP_PACKAGE_NAME, TARGET_PACKAGE_NAME);
+                break;
+            case CoastDoveListenerService.MSG_APP_CLOSED:
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot generate message type " + messageType);
+        }
+        return data;
+    }
+
+    /** Creates a view tree with the given number of nodes, attached to random parents */
+    private ViewTreeNode createViewTree(int size, int depth, int fanOut) {
+        ArrayList<ViewTreeNode> open = new ArrayList<>();
+        ArrayList<Integer> openDepths = new ArrayList<>();
+        ViewTreeNode root = createNode(0);
+        open.add(root);
+        openDepths.add(1);
+        for (int i = 1; i < size && !open.isEmpty(); ++i) {
+            int parentIndex = mRandom.nextInt(open.size());
+            ViewTreeNode parent = open.get(parentIndex);
+            int parentDepth = openDepths.get(parentIndex);
+            ViewTreeNode node = createNode(i);
+            node.setParent(parent);
+            parent.getChildren().add(node);
+            if (parent.getChildCount() >= fanOut) {
+                open.remove(parentIndex);
+                openDepths.remove(parentIndex);
+            }
+            if (parentDepth + 1 < depth) {
+                open.add(node);
+                openDepths.add(parentDepth + 1);
+            }
+        }
+        return root;
+    }
+
+    private static ViewTreeNode createNode(int index) {
+        ViewTreeNode node = new ViewTreeNode();
+        node.setChildren(new ArrayList<ViewTreeNode>());
+        node.setViewIDResourceName(TARGET_PACKAGE_NAME + ":id/node_" + index);
+        node.setClassName(index % 3 == 0 ? "android.widget.TextView" : "android.widget.LinearLayout");
+        node.setText(index % 3 == 0 ? "Item " + index : null);
+        node.setBoundsInScreen(new Rect(0, index * 10, 100, index * 10 + 10));
+        node.setBoundsInParent(new Rect(0, 0, 100, 10));
+        node.setVisibleToUser(true);
+        return node;
+    }
+
+    /**
+     * Returns a parcelled copy of the given Bundle. Messengers in the same process do not
+     * parcel their data, so this makes the service decode it as if it came from another process.
+     */
+    private static Bundle parcelled(Bundle data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(data);
+            parcel.setDataPosition(0);
+            return parcel.readBundle();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void send(Message msg) {
+        if (mService == null)
+            throw new IllegalStateException("Service not bound");
+        try {
+            mService.send(msg);
+        } catch (RemoteException e) {
+            throw new IllegalStateException("Unable to send message: " + e.getMessage());
+        }
+    }
+
+    /** Heap used after a garbage collection, in bytes */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Results of a SyntheticCore run
+     */
+    public static class Report {
+        private final int messages;
+        private final long sendNanos;
+        private final long totalNanos;
+        private final long[] sortedLatencies;
+        private final long heapGrowthBytes;
+        private final int requestsReceived;
+
+        Report(int messages, long sendNanos, long totalNanos, long[] sortedLatencies,
+               long heapGrowthBytes, int requestsReceived) {
+            this.messages = messages;
+            this.sendNanos = sendNanos;
+            this.totalNanos = totalNanos;
+            this.sortedLatencies = sortedLatencies;
+            this.heapGrowthBytes = heapGrowthBytes;
+            this.requestsReceived = requestsReceived;
+        }
+
+        /** Number of messages sent */
+        public int getMessages() {
+            return messages;
+        }
+
+        /** Messages handled per second, from the first message sent until the last one handled */
+        public double getThroughput() {
+            return totalNanos > 0 ? messages * 1e9 / totalNanos : 0.0;
+        }
+
+        /** Time needed to send all messages, in nanoseconds */
+        public long getSendNanos() {
+            return sendNanos;
+        }
+
+        /** Time from the first message sent until the last one handled, in nanoseconds */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * Queueing latency a new event would have seen, as measured by probes
+         * @param percentile    Percentile from 0 to 1
+         * @return Latency in nanoseconds, 0 if there are no probes
+         */
+        public long getLatencyPercentile(double percentile) {
+            if (sortedLatencies.length == 0)
+                return 0L;
+            int index = (int)Math.ceil(percentile * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+        }
+
+        /** Difference of the used heap after and before the run, in bytes */
+        public long getHeapGrowthBytes() {
+            return heapGrowthBytes;
+        }
+
+        /** Number of requests (REPLY_*) the service sent during the run */
+        public int getRequestsReceived() {
+            return requestsReceived;
+        }
+
+        @Override
+        public String toString() {
+            return messages + " messages in " + (totalNanos / 1000000) + " ms ("
+                    + String.format("%.1f", getThroughput()) + " msg/s), latency p50/p90/p99: "
+                    + (getLatencyPercentile(0.5) / 1000) + "/" + (getLatencyPercentile(0.9) / 1000)
+                    + "/" + (getLatencyPercentile(0.99) / 1000) + " us, heap growth: "
+                    + (heapGrowthBytes / 1024) + " KiB, requests: " + requestsReceived;
+        }
+    }
+}
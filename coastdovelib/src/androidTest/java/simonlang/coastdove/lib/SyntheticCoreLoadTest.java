@@ -0,0 +1,77 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Floods LoadTestListenerService with messages from a SyntheticCore
+ */
+public class SyntheticCoreLoadTest extends AndroidTestCase {
+    private SyntheticCore mCore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCore = new SyntheticCore(getContext());
+        mCore.bind(LoadTestListenerService.class);
+        LoadTestListenerService.sInstance.resetDispatchMetrics();
+        LoadTestListenerService.sCallbacks.set(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCore.unbind();
+        super.tearDown();
+    }
+
+    public void testActivitiesAndLayouts() throws Exception {
+        SyntheticCore.Report report = mCore.run(CoastDoveListenerService.MSG_ACTIVITY_DETECTED
+                | CoastDoveListenerService.MSG_LAYOUTS_DETECTED, 5000);
+        Log.i("SyntheticCoreLoadTest", "Activities and layouts: " + report);
+
+        assertEquals(5000, LoadTestListenerService.sCallbacks.get());
+        DispatchMetrics.Snapshot metrics = LoadTestListenerService.sInstance.getDispatchMetrics();
+        assertEquals(2500, metrics.getMessageCount(CoastDoveListenerService.MSG_LAYOUTS_DETECTED));
+        long eventAges = 0;
+        for (long bucket : metrics.getEventAgeHistogram(CoastDoveListenerService.MSG_LAYOUTS_DETECTED))
+            eventAges += bucket;
+        assertEquals(2500, eventAges);
+    }
+
+    public void testInteractionsAndScrollPositions() throws Exception {
+        mCore.setRate(2000);
+        SyntheticCore.Report report = mCore.run(CoastDoveListenerService.MSG_INTERACTION_DETECTED
+                | CoastDoveListenerService.MSG_SCROLL_POSITION_DETECTED, 2000);
+        Log.i("SyntheticCoreLoadTest", "Interactions and scroll positions at 2000 msg/s: " + report);
+
+        assertEquals(2000, LoadTestListenerService.sCallbacks.get());
+    }
+
+    public void testViewTrees() throws Exception {
+        mCore.setViewTreeShape(1000, 20, 5);
+        SyntheticCore.Report report = mCore.run(CoastDoveListenerService.MSG_VIEW_TREE, 200);
+        Log.i("SyntheticCoreLoadTest", "View trees of 1000 nodes: " + report);
+
+        assertEquals(200, LoadTestListenerService.sCallbacks.get());
+        DispatchMetrics.Snapshot metrics = LoadTestListenerService.sInstance.getDispatchMetrics();
+        assertEquals(1000, metrics.getViewTreeNodesLast());
+    }
+}
@@ -24,6 +24,7 @@ import android.os.Parcelable;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.TreeSet;
 
 /**
@@ -36,13 +37,19 @@ public class AppMetaInformation implements Serializable, Parcelable {
     private String appPackageName;
     /** Activities that are entry points to the app from a launcher */
     private Collection<String> mainActivities;
+    /** Main activities for exact lookups, built along with mainActivityIndex */
+    private transient HashSet<String> mainActivitySet;
+    /** Index of all substrings of the main activities */
+    private transient SubstringIndex mainActivityIndex;
 
     /**
-     * Creates AppMetaInformation with the given data
+     * Creates AppMetaInformation with the given data. The main activities are indexed
+     * right away, so they must not be modified afterwards.
      */
     public AppMetaInformation(String appPackageName, Collection<String> mainActivities) {
         this.appPackageName = appPackageName;
         this.mainActivities = mainActivities;
+        buildIndex();
     }
 
     protected AppMetaInformation(Parcel in) {
@@ -51,6 +58,13 @@ public class AppMetaInformation implements Serializable, Parcelable {
         mainActivities = new TreeSet<>(new CollatorWrapper());
         for (int i = 0; i < size; ++i)
             mainActivities.add(in.readString());
+        buildIndex();
+    }
+
+    /** Builds the indices used by isMainActivity */
+    private void buildIndex() {
+        mainActivitySet = new HashSet<>(mainActivities);
+        mainActivityIndex = new SubstringIndex(mainActivities);
     }
 
     public static final Creator<AppMetaInformation> CREATOR = new Creator<AppMetaInformation>() {
@@ -66,16 +80,18 @@ public class AppMetaInformation implements Serializable, Parcelable {
     };
 
     /**
-     * Tells whether the given activity is a possible entry point from a launcher
+     * Tells whether the given activity is a possible entry point from a launcher, i.e.,
+     * whether it is contained in any of the main activities. Takes time proportional to
+     * the activity's length, regardless of the number of main activities.
      * @param activity    Activity to check
      * @return True if the activity is a main activity
      */
     public boolean isMainActivity(String activity) {
-        for (String mainActivity : this.mainActivities) {
-            if (mainActivity.contains(activity))
-                return true;
-        }
-        return false;
+        if (activity == null)
+            return false;
+        if (mainActivityIndex == null) // deserialized
+            buildIndex();
+        return mainActivitySet.contains(activity) || mainActivityIndex.containsSubstring(activity);
     }
 
     /** Package name of the app */
@@ -0,0 +1,289 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Persistent cache of AppMetaInformation, keyed by package name and app version, so that
+ * listeners do not need to ask Coast Dove core again after every rebind. Stored in a compact
+ * binary file in the app's files directory, which is only rewritten if an entry changes.
+ * The file is read and written on a background thread.
+ */
+public class AppMetaInformationCache {
+    /** Name of the cache file */
+    public static final String FILE_NAME = "coastdove_meta_information.bin";
+
+    /** Identifies the file format ("CDMI") */
+    private static final int MAGIC = 0x43444D49;
+    /** Version of the file format */
+    private static final int FORMAT_VERSION = 1;
+    /** Maximum number of entries, or of activities per entry, in a valid file */
+    private static final int MAX_COUNT = 65536;
+
+    /**
+     * Cached meta information of one app
+     */
+    private static class Entry {
+        /** Version code of the app when the meta information was delivered */
+        final int versionCode;
+        /** Meta information delivered */
+        final AppMetaInformation metaInformation;
+
+        Entry(int versionCode, AppMetaInformation metaInformation) {
+            this.versionCode = versionCode;
+            this.metaInformation = metaInformation;
+        }
+    }
+
+    /** Context used to look up app versions */
+    private Context mContext;
+    /** Backing file */
+    private AtomicFile mFile;
+    /** Entries by package name */
+    private Map<String, Entry> mEntries;
+    /** Installed version codes by package name, looked up once after each load */
+    private Map<String, Integer> mVersionCodes;
+    /** Thread on which the file is read and written, started when needed */
+    private HandlerThread mThread;
+    /** Handler of mThread */
+    private Handler mHandler;
+
+    /**
+     * Creates a cache stored in the given context's files directory. Call load to read it.
+     * @param context    Context
+     */
+    public AppMetaInformationCache(Context context) {
+        mContext = context;
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        mEntries = new HashMap<>();
+        mVersionCodes = new HashMap<>();
+    }
+
+    /**
+     * Reads all entries from the cache file in the background. Entries read are added to
+     * those in memory, unless stored meanwhile; a missing or unreadable file results in an
+     * empty cache. Installed app versions are looked up again afterwards.
+     */
+    public void load() {
+        synchronized (this) {
+            mVersionCodes.clear();
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Entry> entries = read();
+                synchronized (AppMetaInformationCache.this) {
+                    entries.putAll(mEntries);
+                    mEntries = entries;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the cached meta information for the given app, or null if there is none, if
+     * the app has been updated (or removed) since it was cached, or if the cache file has
+     * not been read yet
+     * @param appPackageName    App to get the meta information for
+     */
+    public synchronized AppMetaInformation get(String appPackageName) {
+        Entry entry = mEntries.get(appPackageName);
+        if (entry == null)
+            return null;
+        if (entry.versionCode != installedVersionCode(appPackageName))
+            return null;
+        return entry.metaInformation;
+    }
+
+    /**
+     * Stores the given meta information for the installed version of the app. The cache
+     * file is only written (in the background) if the meta information differs from the
+     * cached one.
+     * @param appPackageName     App the meta information belongs to
+     * @param metaInformation    Meta information to store
+     * @return True if the cache has changed
+     */
+    public synchronized boolean put(String appPackageName, AppMetaInformation metaInformation) {
+        int versionCode = installedVersionCode(appPackageName);
+        Entry entry = mEntries.get(appPackageName);
+        if (entry != null && entry.versionCode == versionCode
+                && sameActivities(entry.metaInformation.getMainActivities(), metaInformation.getMainActivities()))
+            return false;
+
+        mEntries.put(appPackageName, new Entry(versionCode, metaInformation));
+        final Map<String, Entry> entries = new HashMap<>(mEntries);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                write(entries);
+            }
+        });
+        return true;
+    }
+
+    /** Removes all entries, including the cache file */
+    public synchronized void clear() {
+        mEntries.clear();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mFile.delete();
+            }
+        });
+    }
+
+    /**
+     * Stops the background thread once the file has been written; it is restarted when
+     * needed
+     */
+    public synchronized void close() {
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    private synchronized void post(Runnable runnable) {
+        if (mThread == null) {
+            mThread = new HandlerThread("CoastDoveMetaInformationCache", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        mHandler.post(runnable);
+    }
+
+    /**
+     * Reads all entries from the cache file. If the file is corrupt, it is deleted.
+     * @return Entries read, empty if the file is missing or unreadable
+     */
+    private Map<String, Entry> read() {
+        Map<String, Entry> entries = new HashMap<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                Log.w("AppMetaInformationCache", "Unknown file format, ignoring cache");
+                return entries;
+            }
+            int count = readCount(in);
+            for (int i = 0; i < count; ++i) {
+                String appPackageName = in.readUTF();
+                int versionCode = in.readInt();
+                int activityCount = readCount(in);
+                Collection<String> mainActivities = new ArrayList<>(activityCount);
+                for (int j = 0; j < activityCount; ++j)
+                    mainActivities.add(in.readUTF());
+                entries.put(appPackageName,
+                        new Entry(versionCode, new AppMetaInformation(appPackageName, mainActivities)));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet
+        } catch (IOException | RuntimeException e) {
+            Log.e("AppMetaInformationCache", "Unable to read cache, deleting it", e);
+            entries.clear();
+            mFile.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        return entries;
+    }
+
+    /** Reads a count, throwing an IOException if it is out of range */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT)
+            throw new IOException("Invalid count " + count);
+        return count;
+    }
+
+    /** Writes the given entries to the cache file */
+    private void write(Map<String, Entry> entries) {
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().versionCode);
+                Collection<String> mainActivities = entry.getValue().metaInformation.getMainActivities();
+                out.writeInt(mainActivities.size());
+                for (String activity : mainActivities)
+                    out.writeUTF(activity);
+            }
+            out.flush();
+            mFile.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e("AppMetaInformationCache", "Unable to write cache: " + e.getMessage());
+            if (stream != null)
+                mFile.failWrite(stream);
+        }
+    }
+
+    /**
+     * Version code of the installed app, or -1 if it is not installed. Looked up once per
+     * app after each load, as it requires a call to the package manager.
+     */
+    private int installedVersionCode(String appPackageName) {
+        Integer versionCode = mVersionCodes.get(appPackageName);
+        if (versionCode == null) {
+            try {
+                versionCode = mContext.getPackageManager().getPackageInfo(appPackageName, 0).versionCode;
+            } catch (PackageManager.NameNotFoundException e) {
+                versionCode = -1;
+            }
+            mVersionCodes.put(appPackageName, versionCode);
+        }
+        return versionCode;
+    }
+
+    private static boolean sameActivities(Collection<String> lhs, Collection<String> rhs) {
+        return lhs.size() == rhs.size() && new HashSet<>(lhs).equals(new HashSet<>(rhs));
+    }
+}
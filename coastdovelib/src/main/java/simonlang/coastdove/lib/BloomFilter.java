@@ -0,0 +1,133 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+/**
+ * Compact summary of a set of strings that answers whether a string might be contained.
+ * False positives are possible (about 1% to 2%), false negatives are not, so a negative
+ * answer avoids searching the set. Uses String.hashCode, which Strings cache, and a
+ * bit array whose size is a power of two, so a lookup costs a few nanoseconds.
+ */
+final class BloomFilter {
+    /** Number of bits set per string */
+    static final int HASH_COUNT = 5;
+    /** Bits per string, before rounding up to a power of two */
+    private static final int BITS_PER_ELEMENT = 10;
+
+    /** Bit array, its length (times 64) is a power of two */
+    private final long[] mBits;
+    /** Number of bits minus one */
+    private final int mMask;
+
+    /**
+     * Creates an empty filter for the given number of strings
+     * @param expectedElements    Number of strings to be added
+     */
+    BloomFilter(int expectedElements) {
+        int bits = 64;
+        while (bits < expectedElements * BITS_PER_ELEMENT && bits < (1 << 30))
+            bits <<= 1;
+        mBits = new long[bits >>> 6];
+        mMask = bits - 1;
+    }
+
+    private BloomFilter(long[] bits) {
+        mBits = bits;
+        mMask = (bits.length << 6) - 1;
+    }
+
+    /**
+     * Creates a filter using the given bit array as storage, e.g., as received from
+     * Coast Dove core (see toLongArray)
+     * @return The filter, or null if the array is not a valid bit array
+     */
+    static BloomFilter wrap(long[] bits) {
+        if (bits == null || bits.length == 0 || bits.length > (1 << 24) || Integer.bitCount(bits.length) != 1)
+            return null;
+        return new BloomFilter(bits);
+    }
+
+    /** Adds the given string */
+    void add(String string) {
+        add(string.hashCode());
+    }
+
+    /** Adds the characters of the given string from start (inclusive) to end (exclusive) */
+    void add(String string, int start, int end) {
+        add(hash(string, start, end));
+    }
+
+    private void add(int h1) {
+        int h2 = mix(h1);
+        for (int i = 0; i < HASH_COUNT; ++i) {
+            int bit = (h1 + i * h2) & mMask;
+            mBits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Indicates whether the given string might have been added
+     * @return False if it has definitely not been added, true if it probably has
+     */
+    boolean mightContain(String string) {
+        return mightContain(string.hashCode());
+    }
+
+    /**
+     * Indicates whether the characters of the given string from start (inclusive) to end
+     * (exclusive) might have been added, without creating a substring
+     */
+    boolean mightContain(String string, int start, int end) {
+        return mightContain(hash(string, start, end));
+    }
+
+    private boolean mightContain(int h1) {
+        int h2 = mix(h1);
+        for (int i = 0; i < HASH_COUNT; ++i) {
+            int bit = (h1 + i * h2) & mMask;
+            if ((mBits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the bit array, e.g., to send it to a listener. The array is not copied. */
+    long[] toLongArray() {
+        return mBits;
+    }
+
+    /** Same as string.substring(start, end).hashCode() */
+    private static int hash(String string, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; ++i)
+            h = 31 * h + string.charAt(i);
+        return h;
+    }
+
+    /** Derives a second, odd hash from the first (finalizer of MurmurHash3) */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+}
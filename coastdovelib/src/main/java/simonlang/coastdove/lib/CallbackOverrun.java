@@ -0,0 +1,81 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+/**
+ * A listener callback that exceeded its time budget, as detected by the callback watchdog
+ */
+public class CallbackOverrun {
+    /** Type of the message whose callback was too slow (one of the MSG_* constants) */
+    private final int messageType;
+    /** Time budget of the callback, in nanoseconds */
+    private final long budgetNanos;
+    /** Time the callback actually took, in nanoseconds */
+    private final long durationNanos;
+    /** Stack of the dispatch thread when the budget ran out, or null if not captured in time */
+    private final StackTraceElement[] stackTrace;
+    /** Wall clock time (System.currentTimeMillis) at which the callback finished */
+    private final long timestamp;
+
+    /** Constructs a CallbackOverrun object */
+    public CallbackOverrun(int messageType, long budgetNanos, long durationNanos,
+                           StackTraceElement[] stackTrace, long timestamp) {
+        this.messageType = messageType;
+        this.budgetNanos = budgetNanos;
+        this.durationNanos = durationNanos;
+        this.stackTrace = stackTrace;
+        this.timestamp = timestamp;
+    }
+
+    /** Type of the message whose callback was too slow (one of the MSG_* constants) */
+    public int getMessageType() {
+        return messageType;
+    }
+
+    /** Time budget of the callback, in nanoseconds */
+    public long getBudgetNanos() {
+        return budgetNanos;
+    }
+
+    /** Time the callback actually took, in nanoseconds */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /** Stack of the dispatch thread when the budget ran out, or null if not captured in time */
+    public StackTraceElement[] getStackTrace() {
+        return stackTrace;
+    }
+
+    /** Wall clock time (System.currentTimeMillis) at which the callback finished */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        String result = "Callback for " + DispatchTracer.messageTypeName(messageType) + " took "
+                + (durationNanos / 1000000) + " ms (budget: " + (budgetNanos / 1000000) + " ms)";
+        if (stackTrace != null) {
+            for (StackTraceElement element : stackTrace)
+                result += "\n    at " + element;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,127 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * Watches listener callbacks for exceeding their time budgets. While a callback runs,
+ * a timeout is pending on a separate thread; if it fires, the dispatch thread's stack
+ * is captured so the offending code can be found afterwards.
+ */
+final class CallbackWatchdog {
+    /** Time budgets per message type in nanoseconds, 0 if unlimited */
+    private final long[] mBudgetsNanos = new long[DispatchMetrics.MESSAGE_TYPES];
+    /** Thread on which timeouts fire, started when the first callback with a budget runs */
+    private HandlerThread mThread;
+    /** Handler of mThread */
+    private Handler mHandler;
+
+    /** Thread on which the callback currently watched runs */
+    private Thread mDispatchThread;
+    /** Index of the message type currently watched, or -1 if none */
+    private int mArmedIndex = -1;
+    /** Stack captured when the current budget ran out, null if it has not yet */
+    private StackTraceElement[] mCapturedStack;
+
+    /** Fires when the budget of the callback currently watched runs out */
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CallbackWatchdog.this) {
+                if (mArmedIndex >= 0 && mDispatchThread != null)
+                    mCapturedStack = mDispatchThread.getStackTrace();
+            }
+        }
+    };
+
+    /**
+     * Sets the time budget for callbacks of the given message type
+     * @param messageType    One of the MSG_* constants
+     * @param budgetNanos    Budget in nanoseconds, 0 for unlimited
+     */
+    synchronized void setBudget(int messageType, long budgetNanos) {
+        mBudgetsNanos[DispatchMetrics.indexOf(messageType)] = budgetNanos > 0L ? budgetNanos : 0L;
+    }
+
+    /** Returns the time budget for callbacks of the given message type, 0 if unlimited */
+    synchronized long getBudget(int messageType) {
+        return mBudgetsNanos[DispatchMetrics.indexOf(messageType)];
+    }
+
+    /**
+     * Starts watching a callback of the given type, to be called on the dispatch thread
+     * right before the callback
+     */
+    synchronized void arm(int messageType) {
+        int index = DispatchMetrics.indexOf(messageType);
+        long budget = mBudgetsNanos[index];
+        if (budget == 0L)
+            return;
+
+        if (mThread == null) {
+            mThread = new HandlerThread("CoastDoveWatchdog", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        mDispatchThread = Thread.currentThread();
+        mArmedIndex = index;
+        mCapturedStack = null;
+        mHandler.postDelayed(mTimeout, budget / 1000000L);
+    }
+
+    /**
+     * Stops watching the current callback, to be called on the dispatch thread right after it
+     * @param messageType      Type of the callback watched
+     * @param durationNanos    Time the callback took
+     * @return A CallbackOverrun if the budget was exceeded, null otherwise
+     */
+    synchronized CallbackOverrun disarm(int messageType, long durationNanos) {
+        int index = DispatchMetrics.indexOf(messageType);
+        if (mArmedIndex != index)
+            return null;
+
+        if (mHandler != null)
+            mHandler.removeCallbacks(mTimeout);
+        long budget = mBudgetsNanos[index];
+        StackTraceElement[] stack = mCapturedStack;
+        mArmedIndex = -1;
+        mDispatchThread = null;
+        mCapturedStack = null;
+
+        if (budget == 0L || durationNanos <= budget)
+            return null;
+        return new CallbackOverrun(messageType, budget, durationNanos, stack, System.currentTimeMillis());
+    }
+
+    /** Stops the watchdog thread, it is restarted when needed */
+    synchronized void shutdown() {
+        if (mThread != null) {
+            mHandler.removeCallbacks(mTimeout);
+            mThread.quit();
+            mThread = null;
+            mHandler = null;
+        }
+        mArmedIndex = -1;
+        mDispatchThread = null;
+        mCapturedStack = null;
+    }
+}
@@ -26,16 +26,21 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.accessibility.AccessibilityNodeInfo;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * Listener service to be bound by the Coast Dove core app
@@ -78,137 +83,557 @@ public abstract class CoastDoveListenerService extends Service {
     public static final String DATA_ACTION = "action";
     public static final String DATA_ACTION_ARGUMENTS = "actionArguments";
     public static final String DATA_SCROLL_POSITION = "scrollPosition";
+    /** Bloom filter bits of the layouts sent (optional, see putMembershipFilters) */
+    public static final String DATA_LAYOUTS_FILTER = "layoutsFilter";
+    /** Bloom filter bits of the resource IDs of the view tree sent (optional, see putMembershipFilters) */
+    public static final String DATA_VIEW_TREE_RESOURCE_ID_FILTER = "viewTreeResourceIDFilter";
+    /** SystemClock.elapsedRealtimeNanos at which the core detected the event (optional) */
+    public static final String DATA_EVENT_TIMESTAMP = "eventTimestamp";
+    /** SystemClock.elapsedRealtimeNanos at which the core sent the message (optional) */
+    public static final String DATA_SEND_TIMESTAMP = "sendTimestamp";
+    /**
+     * Identifies a view tree request; Coast Dove core sends it back along with the view tree.
+     * View trees without it are delivered to onViewTreeReceived.
+     */
+    public static final String DATA_VIEW_TREE_REQUEST_ID = "viewTreeRequestID";
+
+    /** View tree requested using requestViewTree */
+    private static final int VIEW_TREE_REQUEST_USER = 1;
+    /** View tree requested to update the node anchors, not delivered to onViewTreeReceived */
+    private static final int VIEW_TREE_REQUEST_NODE_ANCHORS = 2;
+    /** Time after scrolling stopped until a view tree is requested to correct the node anchors */
+    private static final long NODE_ANCHOR_TREE_DELAY_MILLIS = 300L;
+    /** Time after which a view tree requested for the node anchors is considered lost */
+    private static final long NODE_ANCHOR_TREE_TIMEOUT_MILLIS = 2000L;
+
+    /** All message types, in the order in which they are handled if sent together */
+    private static final int[] MESSAGE_TYPES = { MSG_REPLY_TO, MSG_APP_ENABLED, MSG_APP_DISABLED,
+            MSG_META_INFORMATION, MSG_APP_CLOSED, MSG_APP_OPENED, MSG_ACTIVITY_DETECTED,
+            MSG_LAYOUTS_DETECTED, MSG_INTERACTION_DETECTED, MSG_NOTIFICATION_DETECTED,
+            MSG_SCREEN_STATE_DETECTED, MSG_VIEW_TREE, MSG_ACTION_RESULT, MSG_SCROLL_POSITION_DETECTED };
+    /** Message types of which the latest one is kept in low-power mode and handled afterwards */
+    private static final int[] DEFERRED_MESSAGE_TYPES = { MSG_ACTIVITY_DETECTED, MSG_LAYOUTS_DETECTED,
+            MSG_SCROLL_POSITION_DETECTED };
+    /** Message types that are dropped without decoding in low-power mode */
+    private static final int DROPPED_MESSAGE_TYPES = MSG_INTERACTION_DETECTED | MSG_VIEW_TREE;
+    /** Message types concerning the app opened last, dropped if it does not match the package filter */
+    private static final int APP_MESSAGE_TYPES = MSG_ACTIVITY_DETECTED | MSG_LAYOUTS_DETECTED
+            | MSG_INTERACTION_DETECTED | MSG_VIEW_TREE | MSG_SCROLL_POSITION_DETECTED;
+
+    /** Default maximum number of apps whose state is kept (see getMaxAppPartitions) */
+    public static final int DEFAULT_MAX_APP_PARTITIONS = 8;
+
+    /**
+     * State and history of an app that is not in the foreground
+     */
+    private static final class AppPartition {
+        final ListenerState state;
+        final ListenerHistory history;
+
+        AppPartition(ListenerState state, ListenerHistory history) {
+            this.state = state;
+            this.history = history;
+        }
+    }
 
     /**
      * Handler for incoming messages from Coast Dove core
      */
     private final class IncomingHandler extends Handler {
+        /** Start of the decode phase currently measured */
+        private long mDecodeStart;
+        /** Start of the callback phase currently measured */
+        private long mCallbackStart;
+        /** Whether trace sections are emitted for the message currently handled */
+        private boolean mTracing;
+        /** Data of the message currently handled */
+        private Bundle mData;
+        /** Time at which the message currently handled was received */
+        private long mReceivedAt;
+        /** Whether the timestamps of the message currently handled have been read */
+        private boolean mTimestampsRead;
+        /** Event timestamp of the message currently handled, or 0 if not sent by the core */
+        private long mEventTimestamp;
+        /** Latest data deferred in low-power mode, per message type (DispatchMetrics.indexOf) */
+        private final Bundle[] mDeferredData = new Bundle[DispatchMetrics.MESSAGE_TYPES];
+        /** Time at which the deferred data was received */
+        private final long[] mDeferredReceivedAt = new long[DispatchMetrics.MESSAGE_TYPES];
+        /** Cookie of the async trace section of the deferred data, 0 if not traced */
+        private final int[] mDeferredTraceCookies = new int[DispatchMetrics.MESSAGE_TYPES];
+        /** Whether the app opened last does not match the package filter */
+        private boolean mForeignApp;
+
         @Override
         public void handleMessage(Message msg) {
+            mReceivedAt = SystemClock.elapsedRealtimeNanos();
             Bundle data = msg.getData();
             data.setClassLoader(CoastDoveListenerService.this.getClass().getClassLoader());
-            if ((msg.what & MSG_REPLY_TO) != 0) {
-                mReplyMessenger = msg.replyTo;
-            }
-            if ((msg.what & MSG_APP_ENABLED) != 0) {
-                String appPackageName = data.getString(DATA_APP_PACKAGE_NAME);
-                appEnabled(appPackageName);
-            }
-            if ((msg.what & MSG_APP_DISABLED) != 0) {
-                String appPackageName = data.getString(DATA_APP_PACKAGE_NAME);
-                appDisabled(appPackageName);
-            }
-            if ((msg.what & MSG_META_INFORMATION) != 0) {
-                String appPackageName = data.getString(DATA_APP_PACKAGE_NAME);
-                Parcelable appMetaInformation = data.getParcelable(DATA_META_INFORMATION);
-                if (appMetaInformation instanceof AppMetaInformation)
-                    onMetaInformationDelivered(appPackageName, (AppMetaInformation)appMetaInformation);
-            }
-            if ((msg.what & MSG_APP_CLOSED) != 0) {
-                appClosed();
+            int payloadBytes = -1;
+            mData = data;
+            mTimestampsRead = false;
+            for (int messageType : MESSAGE_TYPES) {
+                if ((msg.what & messageType) == 0)
+                    continue;
+                if (mPackageFilter != null && isFiltered(messageType, data)) {
+                    mDispatchMetrics.recordFiltered(messageType);
+                    if (messageType == MSG_VIEW_TREE)
+                        viewTreeDropped();
+                    continue;
+                }
+                if (mLowPower && deferOrDrop(messageType, data)) {
+                    if (messageType == MSG_VIEW_TREE)
+                        viewTreeDropped();
+                    continue;
+                }
+                if (payloadBytes < 0)
+                    payloadBytes = measurePayload(data);
+                boolean wasLowPower = mLowPower;
+                dispatch(msg, messageType, data, payloadBytes);
+                if (wasLowPower && !mLowPower)
+                    replayDeferred();
             }
-            if ((msg.what & MSG_APP_OPENED) != 0) {
-                String appPackageName = data.getString(DATA_APP_PACKAGE_NAME);
-                appOpened(appPackageName);
+            mData = null;
+        }
+
+        /**
+         * Decodes a message of a single type and calls the respective callback
+         * @param msg            Message received, or null if the data is replayed after low-power mode
+         * @param messageType    Exactly one of the MSG_* constants
+         * @param data           Data of the message
+         * @param payloadBytes   Size of the data, 0 if not measured
+         */
+        private void dispatch(Message msg, int messageType, Bundle data, int payloadBytes) {
+            switch (messageType) {
+                case MSG_REPLY_TO: {
+                    beginDecode(MSG_REPLY_TO, payloadBytes);
+                    endDecode(MSG_REPLY_TO);
+                    mReplyMessenger = msg.replyTo;
+                    endCallback(MSG_REPLY_TO);
+                    break;
+                }
+                case MSG_APP_ENABLED: {
+                    beginDecode(MSG_APP_ENABLED, payloadBytes);
+                    String appPackageName = data.getString(DATA_APP_PACKAGE_NAME);
+                    endDecode(MSG_APP_ENABLED);
+                    appEnabled(appPackageName);
+                    endCallback(MSG_APP_ENABLED);
+                    break;
+                }
+                case MSG_APP_DISABLED: {
+                    beginDecode(MSG_APP_DISABLED, payloadBytes);
+                    String appPackageName = data.getString(DATA_APP_PACKAGE_NAME);
+                    endDecode(MSG_APP_DISABLED);
+                    appDisabled(appPackageName);
+                    endCallback(MSG_APP_DISABLED);
+                    break;
+                }
+                case MSG_META_INFORMATION: {
+                    beginDecode(MSG_META_INFORMATION, payloadBytes);
+                    String appPackageName = data.getString(DATA_APP_PACKAGE_NAME);
+                    Parcelable appMetaInformation = data.getParcelable(DATA_META_INFORMATION);
+                    endDecode(MSG_META_INFORMATION);
+                    if (appMetaInformation instanceof AppMetaInformation)
+                        metaInformationDelivered(appPackageName, (AppMetaInformation)appMetaInformation);
+                    endCallback(MSG_META_INFORMATION);
+                    break;
+                }
+                case MSG_APP_CLOSED: {
+                    beginDecode(MSG_APP_CLOSED, payloadBytes);
+                    endDecode(MSG_APP_CLOSED);
+                    appClosed();
+                    endCallback(MSG_APP_CLOSED);
+                    break;
+                }
+                case MSG_APP_OPENED: {
+                    beginDecode(MSG_APP_OPENED, payloadBytes);
+                    String appPackageName = data.getString(DATA_APP_PACKAGE_NAME);
+                    endDecode(MSG_APP_OPENED);
+                    appOpened(appPackageName);
+                    endCallback(MSG_APP_OPENED);
+                    break;
+                }
+                case MSG_ACTIVITY_DETECTED: {
+                    beginDecode(MSG_ACTIVITY_DETECTED, payloadBytes);
+                    String activity = data.getString(DATA_ACTIVITY);
+                    endDecode(MSG_ACTIVITY_DETECTED);
+                    activityDetected(activity);
+                    endCallback(MSG_ACTIVITY_DETECTED);
+                    break;
+                }
+                case MSG_LAYOUTS_DETECTED: {
+                    beginDecode(MSG_LAYOUTS_DETECTED, payloadBytes);
+                    LayoutSet layouts = LayoutSet.wrap(data.getStringArray(DATA_LAYOUTS),
+                            data.getLongArray(DATA_LAYOUTS_FILTER));
+                    endDecode(MSG_LAYOUTS_DETECTED);
+                    layoutsDetected(layouts);
+                    endCallback(MSG_LAYOUTS_DETECTED);
+                    break;
+                }
+                case MSG_INTERACTION_DETECTED: {
+                    beginDecode(MSG_INTERACTION_DETECTED, payloadBytes);
+                    Parcelable[] interactionArray = data.getParcelableArray(DATA_INTERACTION);
+                    String eventTypeString = data.getString(DATA_EVENT_TYPE);
+                    EventType eventType = EventType.valueOf(eventTypeString);
+                    if (interactionArray == null) {
+                        endDecode(MSG_INTERACTION_DETECTED);
+                        Log.e("Listener", "Interaction data is null");
+                    }
+                    else {
+                        Collection<InteractionEventData> interaction = new LinkedList<>();
+                        for (Parcelable eventData : interactionArray)
+                            interaction.add((InteractionEventData) eventData);
+                        endDecode(MSG_INTERACTION_DETECTED);
+                        interactionDetected(interaction, eventType);
+                    }
+                    endCallback(MSG_INTERACTION_DETECTED);
+                    break;
+                }
+                case MSG_NOTIFICATION_DETECTED: {
+                    beginDecode(MSG_NOTIFICATION_DETECTED, payloadBytes);
+                    String notification = data.getString(DATA_NOTIFICATION);
+                    endDecode(MSG_NOTIFICATION_DETECTED);
+                    notificationDetected(notification);
+                    endCallback(MSG_NOTIFICATION_DETECTED);
+                    break;
+                }
+                case MSG_SCREEN_STATE_DETECTED: {
+                    beginDecode(MSG_SCREEN_STATE_DETECTED, payloadBytes);
+                    boolean screenOff = data.getBoolean(DATA_SCREEN_OFF);
+                    endDecode(MSG_SCREEN_STATE_DETECTED);
+                    screenStateDetected(screenOff);
+                    endCallback(MSG_SCREEN_STATE_DETECTED);
+                    break;
+                }
+                case MSG_VIEW_TREE: {
+                    beginDecode(MSG_VIEW_TREE, payloadBytes);
+                    ViewTreeNode viewTree = data.getParcelable(DATA_VIEW_TREE);
+                    if (viewTree != null) {
+                        int nodeCount = viewTree.getNodeCount();
+                        mDispatchMetrics.recordViewTree(nodeCount);
+                        if (mTracing)
+                            mDispatchTracer.setViewTreeNodeCount(nodeCount);
+                        // Otherwise, the filter is built on the first query
+                        BloomFilter filter = BloomFilter.wrap(data.getLongArray(DATA_VIEW_TREE_RESOURCE_ID_FILTER));
+                        if (filter != null)
+                            viewTree.setResourceIDFilter(filter);
+                    }
+                    int requestID = data.getInt(DATA_VIEW_TREE_REQUEST_ID, 0);
+                    endDecode(MSG_VIEW_TREE);
+                    if (requestID == VIEW_TREE_REQUEST_NODE_ANCHORS)
+                        nodeAnchorTreeReceived(viewTree);
+                    else {
+                        // Without a request ID, the tree may answer a request for the node anchors
+                        if (requestID == 0)
+                            mNodeAnchorTreeRequestedAt = 0L;
+                        viewTreeReceived(viewTree);
+                    }
+                    endCallback(MSG_VIEW_TREE);
+                    break;
+                }
+                case MSG_ACTION_RESULT: {
+                    if (Build.VERSION.SDK_INT >= 21) {
+                        beginDecode(MSG_ACTION_RESULT, payloadBytes);
+                        int actionID = data.getInt(DATA_ACTION);
+                        ViewTreeNode node = null;
+                        if (data.containsKey(DATA_VIEW_TREE_NODE))
+                            node = data.getParcelable(DATA_VIEW_TREE_NODE);
+                        AccessibilityNodeInfo.AccessibilityAction action = new AccessibilityNodeInfo.AccessibilityAction(actionID, null);
+                        endDecode(MSG_ACTION_RESULT);
+                        if (msg.arg1 != 0)
+                            actionSuccessful(node, action);
+                        else
+                            actionFailed(node, action);
+                        endCallback(MSG_ACTION_RESULT);
+                    }
+                    break;
+                }
+                case MSG_SCROLL_POSITION_DETECTED: {
+                    beginDecode(MSG_SCROLL_POSITION_DETECTED, payloadBytes);
+                    ScrollPosition scrollPosition = data.getParcelable(DATA_SCROLL_POSITION);
+                    endDecode(MSG_SCROLL_POSITION_DETECTED);
+                    scrollPositionDetected(scrollPosition);
+                    endCallback(MSG_SCROLL_POSITION_DETECTED);
+                    break;
+                }
             }
-            if ((msg.what & MSG_ACTIVITY_DETECTED) != 0) {
-                String activity = data.getString(DATA_ACTIVITY);
-                activityDetected(activity);
+        }
+
+        /**
+         * Indicates whether a message of the given type concerns an app that does not match
+         * the package filter. Only MSG_APP_OPENED is decoded (partially) to find out.
+         */
+        private boolean isFiltered(int messageType, Bundle data) {
+            switch (messageType) {
+                case MSG_APP_OPENED:
+                    mForeignApp = !mPackageFilter.matches(data.getString(DATA_APP_PACKAGE_NAME));
+                    return mForeignApp;
+                case MSG_APP_CLOSED:
+                    boolean foreignApp = mForeignApp;
+                    mForeignApp = false;
+                    return foreignApp;
+                default:
+                    return mForeignApp && (messageType & APP_MESSAGE_TYPES) != 0;
             }
-            if ((msg.what & MSG_LAYOUTS_DETECTED) != 0) {
-                String[] layoutsArray = data.getStringArray(DATA_LAYOUTS);
-                TreeSet<String> layouts = new TreeSet<>(new CollatorWrapper());
-                for (String layout : layoutsArray)
-                    layouts.add(layout);
-                layoutsDetected(layouts);
+        }
+
+        /**
+         * Keeps or drops a message of the given type without decoding it, if it is not
+         * critical. Only called in low-power mode.
+         * @return True if the message has been deferred or dropped, false if it must be handled
+         */
+        private boolean deferOrDrop(int messageType, Bundle data) {
+            if ((messageType & DROPPED_MESSAGE_TYPES) != 0) {
+                mDispatchMetrics.recordDropped(messageType);
+                return true;
             }
-            if ((msg.what & MSG_INTERACTION_DETECTED) != 0) {
-                Parcelable[] interactionArray = data.getParcelableArray(DATA_INTERACTION);
-                String eventTypeString = data.getString(DATA_EVENT_TYPE);
-                EventType eventType = EventType.valueOf(eventTypeString);
-                if (interactionArray == null)
-                    Log.e("Listener", "Interaction data is null");
-                else {
-                    Collection<InteractionEventData> interaction = new LinkedList<>();
-                    for (Parcelable eventData : interactionArray)
-                        interaction.add((InteractionEventData) eventData);
-                    interactionDetected(interaction, eventType);
+            for (int deferredType : DEFERRED_MESSAGE_TYPES) {
+                if (deferredType == messageType) {
+                    int index = DispatchMetrics.indexOf(messageType);
+                    if (mDeferredData[index] != null)
+                        endDeferredSection(messageType);
+                    mDeferredData[index] = data;
+                    mDeferredReceivedAt[index] = mReceivedAt;
+                    if (mDispatchTracer.isEnabled())
+                        mDeferredTraceCookies[index] = mDispatchTracer.beginDeferred(messageType);
+                    mDispatchMetrics.recordDeferred(messageType);
+                    return true;
                 }
             }
-            if ((msg.what & MSG_NOTIFICATION_DETECTED) != 0) {
-                String notification = data.getString(DATA_NOTIFICATION);
-                notificationDetected(notification);
+            return false;
+        }
+
+        /** Handles the messages deferred in low-power mode, in the usual order */
+        private void replayDeferred() {
+            Bundle data = mData;
+            long receivedAt = mReceivedAt;
+            boolean timestampsRead = mTimestampsRead;
+            long eventTimestamp = mEventTimestamp;
+            for (int messageType : DEFERRED_MESSAGE_TYPES) {
+                int index = DispatchMetrics.indexOf(messageType);
+                Bundle deferred = mDeferredData[index];
+                if (deferred == null)
+                    continue;
+                mDeferredData[index] = null;
+                endDeferredSection(messageType);
+                mData = deferred;
+                mReceivedAt = mDeferredReceivedAt[index];
+                mTimestampsRead = false;
+                dispatch(null, messageType, deferred, measurePayload(deferred));
             }
-            if ((msg.what & MSG_SCREEN_STATE_DETECTED) != 0) {
-                boolean screenOff = data.getBoolean(DATA_SCREEN_OFF);
-                screenStateDetected(screenOff);
+            mData = data;
+            mReceivedAt = receivedAt;
+            mTimestampsRead = timestampsRead;
+            mEventTimestamp = eventTimestamp;
+        }
+
+        /** Discards all messages deferred in low-power mode, and forgets the app opened last */
+        private void reset() {
+            for (int messageType : DEFERRED_MESSAGE_TYPES) {
+                int index = DispatchMetrics.indexOf(messageType);
+                if (mDeferredData[index] != null)
+                    endDeferredSection(messageType);
             }
-            if ((msg.what & MSG_VIEW_TREE) != 0) {
-                ViewTreeNode viewTree = data.getParcelable(DATA_VIEW_TREE);
-                viewTreeReceived(viewTree);
+            Arrays.fill(mDeferredData, null);
+            mForeignApp = false;
+        }
+
+        /** Ends the async trace section of the data deferred for the given message type, if any */
+        private void endDeferredSection(int messageType) {
+            int index = DispatchMetrics.indexOf(messageType);
+            mDispatchTracer.endDeferred(messageType, mDeferredTraceCookies[index]);
+            mDeferredTraceCookies[index] = 0;
+        }
+
+        /**
+         * Measures the size of the data received if enabled (see setPayloadMeasurementEnabled),
+         * by writing it to a Parcel
+         * @return Size of the data, or 0 if not measured
+         */
+        private int measurePayload(Bundle data) {
+            if (!mPayloadMeasurementEnabled)
+                return 0;
+            Parcel parcel = Parcel.obtain();
+            try {
+                data.writeToParcel(parcel, 0);
+                return parcel.dataSize();
+            } finally {
+                parcel.recycle();
             }
-            if ((msg.what & MSG_ACTION_RESULT) != 0) {
-                if (Build.VERSION.SDK_INT >= 21) {
-                    int actionID = data.getInt(DATA_ACTION);
-                    ViewTreeNode node = null;
-                    if (data.containsKey(DATA_VIEW_TREE_NODE))
-                        node = data.getParcelable(DATA_VIEW_TREE_NODE);
-                    AccessibilityNodeInfo.AccessibilityAction action = new AccessibilityNodeInfo.AccessibilityAction(actionID, null);
-                    if (msg.arg1 != 0)
-                        actionSuccessful(node, action);
-                    else
-                        actionFailed(node, action);
-                }
+        }
+
+        /** Starts measuring (and tracing) the decode phase of the given message type */
+        private void beginDecode(int messageType, int payloadBytes) {
+            mDispatchMetrics.recordMessage(messageType, payloadBytes);
+            mTracing = mDispatchTracer.isEnabled();
+            if (mTracing)
+                mDispatchTracer.beginDecode(messageType);
+            mDecodeStart = System.nanoTime();
+            if (!mTimestampsRead)
+                readTimestamps();
+            if (mQueueDelayNanos >= 0L)
+                mDispatchMetrics.recordQueueDelay(messageType, mQueueDelayNanos);
+        }
+
+        /**
+         * Reads the core's timestamps from the current message. This unparcels the Bundle,
+         * which is why it happens within the first decode phase.
+         */
+        private void readTimestamps() {
+            long sendTimestamp = mData.getLong(DATA_SEND_TIMESTAMP, 0L);
+            mEventTimestamp = mData.getLong(DATA_EVENT_TIMESTAMP, 0L);
+            mQueueDelayNanos = sendTimestamp != 0L ? mReceivedAt - sendTimestamp : -1L;
+            mTimestampsRead = true;
+        }
+
+        /**
+         * Time of the event currently handled, as detected by the core if it sent the
+         * time, otherwise as received (SystemClock.elapsedRealtimeNanos)
+         */
+        private long eventTime() {
+            return mEventTimestamp != 0L ? mEventTimestamp : mReceivedAt;
+        }
+
+        /** Ends the decode phase and starts the callback phase of the given message type */
+        private void endDecode(int messageType) {
+            mCallbackStart = System.nanoTime();
+            mDispatchMetrics.recordDecode(messageType, mCallbackStart - mDecodeStart);
+            if (mEventTimestamp != 0L) {
+                mEventAgeNanos = SystemClock.elapsedRealtimeNanos() - mEventTimestamp;
+                long slo = mLatencySloNanos;
+                boolean sloViolated = slo > 0L && mEventAgeNanos > slo;
+                mDispatchMetrics.recordEventAge(messageType, mEventAgeNanos, sloViolated);
+                if (sloViolated)
+                    onLatencySloViolated(messageType, mEventAgeNanos);
             }
-            if ((msg.what & MSG_SCROLL_POSITION_DETECTED) != 0) {
-                ScrollPosition scrollPosition = data.getParcelable(DATA_SCROLL_POSITION);
-                scrollPositionDetected(scrollPosition);
+            else
+                mEventAgeNanos = -1L;
+            if (mTracing) {
+                mDispatchTracer.endSection();
+                mDispatchTracer.beginCallback(messageType);
+            }
+            mCallbackWatchdog.arm(messageType);
+        }
+
+        /** Ends the callback phase of the given message type */
+        private void endCallback(int messageType) {
+            long duration = System.nanoTime() - mCallbackStart;
+            CallbackOverrun overrun = mCallbackWatchdog.disarm(messageType, duration);
+            mDispatchMetrics.recordCallback(messageType, duration);
+            if (mTracing)
+                mDispatchTracer.endSection();
+            if (overrun != null) {
+                mDispatchMetrics.recordCallbackOverBudget(messageType);
+                mLastCallbackOverrun = overrun;
+                onCallbackOverBudget(overrun);
             }
         }
     }
 
+    /** Handles messages from the Coast Dove core app */
+    private transient final IncomingHandler mHandler = new IncomingHandler();
     /** Receives messages from the Coast Dove core app */
-    private transient final Messenger mMessenger = new Messenger(new IncomingHandler());
+    private transient final Messenger mMessenger = new Messenger(mHandler);
     /** Sends messages back to the Coast Dove core app */
     private transient Messenger mReplyMessenger = null;
-
-
-    /** Last package name detected, or "" if none so far */
-    private transient volatile String lastAppPackageName;
-    /** Last activity detected, or "" if none so far */
-    private transient volatile String lastActivity;
-    /** Last layouts detected (empty set if none) */
-    private transient volatile Set<String> lastLayouts;
-    /** Last interaction detected (empty if none) */
-    private transient volatile Collection<InteractionEventData> lastInteraction;
-    /** Last notification detected, or "" if none so far */
-    private transient volatile String lastNotification;
-    /** Whether the screen is currently off, according to the last
-     *  screen state detected (false by default) */
-    private transient volatile boolean screenOff;
-    /** Apps for which this module is enabled */
-    private transient volatile Set<String> enabledApps;
-    /** Last viewtree received, if ever requested using requestViewTree */
-    private transient volatile ViewTreeNode lastViewTree;
-    /** Last scroll position detected */
-    private transient volatile ScrollPosition lastScrollPosition;
+    /** Counters and latency histograms for incoming messages */
+    private transient final DispatchMetrics mDispatchMetrics = new DispatchMetrics();
+    /** Whether the size of incoming messages is measured */
+    private transient volatile boolean mPayloadMeasurementEnabled = false;
+    /** Time from the core sending the current message until handling it, or -1 if unknown */
+    private transient volatile long mQueueDelayNanos = -1L;
+    /** Age of the current event when its callback was called, or -1 if unknown */
+    private transient volatile long mEventAgeNanos = -1L;
+    /** Maximum event age before onLatencySloViolated is called, or 0 if disabled */
+    private transient volatile long mLatencySloNanos = 0L;
+    /** Emits trace sections for incoming messages, if enabled */
+    private transient final DispatchTracer mDispatchTracer = new DispatchTracer();
+    /** Watches callbacks for exceeding their time budgets */
+    private transient final CallbackWatchdog mCallbackWatchdog = new CallbackWatchdog();
+    /** Last callback that exceeded its time budget, or null if none so far */
+    private transient volatile CallbackOverrun mLastCallbackOverrun = null;
+    /** Meta information delivered previously, loaded when the service is bound */
+    private transient AppMetaInformationCache mMetaInformationCache = null;
+    /** Whether low-power mode is entered automatically (true by default) */
+    private transient volatile boolean mLowPowerModeEnabled = true;
+    /** Whether the associated app is closed, according to the last MSG_APP_CLOSED / MSG_APP_OPENED */
+    private transient boolean mAppClosed = false;
+    /** Whether the service is currently in low-power mode */
+    private transient volatile boolean mLowPower = false;
+    /** Overlays anchored to nodes of the view tree (only accessed on the main thread) */
+    private transient final List<NodeAnchor> mNodeAnchors = new ArrayList<>();
+    /** SystemClock.uptimeMillis when a view tree was requested for the node anchors, or 0 if none is pending */
+    private transient long mNodeAnchorTreeRequestedAt = 0L;
+    /** Requests a view tree to correct the node anchors once scrolling has stopped */
+    private transient final Runnable mRequestNodeAnchorTree = new Runnable() {
+        @Override
+        public void run() {
+            requestNodeAnchorTree();
+        }
+    };
+    /** Drops events of apps not matching the associated app patterns, or null to keep all */
+    private transient volatile PackageFilter mPackageFilter = null;
+    /** Overlays of this module, created on first use */
+    private transient OverlayManager mOverlayManager = null;
+    /** Triggers of this module, created on first use */
+    private transient TriggerEngine mTriggerEngine = null;
+    /** Enters or leaves low-power mode after it has been enabled or disabled */
+    private transient final Runnable mUpdateLowPowerMode = new Runnable() {
+        @Override
+        public void run() {
+            boolean wasLowPower = mLowPower;
+            updateLowPowerMode();
+            if (wasLowPower && !mLowPower)
+                mHandler.replayDeferred();
+        }
+    };
+
+
+    /** State as detected so far, replaced as a whole for each event */
+    private transient volatile ListenerState mState = ListenerState.INITIAL;
+    /** Recent events of the current app, created when the service is bound */
+    private transient volatile ListenerHistory mHistory = new ListenerHistory(ListenerHistory.DEFAULT_CAPACITY);
+    /** State and history of recent apps other than the current one, least recently used first */
+    private transient final LinkedHashMap<String, AppPartition> mAppPartitions = new LinkedHashMap<>(16, 0.75f, true);
+    /** Maximum number of apps in mAppPartitions, set when the service is bound */
+    private transient int mMaxAppPartitions = DEFAULT_MAX_APP_PARTITIONS;
+
+    // Event streams, completed and replaced when the service is unbound
+    private transient volatile EventPublisher<String> mAppOpenedStream = new EventPublisher<>();
+    private transient volatile EventPublisher<String> mAppClosedStream = new EventPublisher<>();
+    private transient volatile EventPublisher<String> mActivityStream = new EventPublisher<>();
+    private transient volatile EventPublisher<LayoutSet> mLayoutStream = new EventPublisher<>();
+    private transient volatile EventPublisher<List<InteractionEventData>> mInteractionStream = new EventPublisher<>();
+    private transient volatile EventPublisher<String> mNotificationStream = new EventPublisher<>();
+    private transient volatile EventPublisher<Boolean> mScreenStateStream = new EventPublisher<>();
+    private transient volatile EventPublisher<ViewTreeNode> mViewTreeStream = new EventPublisher<>();
+    private transient volatile EventPublisher<ScrollPosition> mScrollPositionStream = new EventPublisher<>();
+    private transient volatile EventPublisher<ListenerState> mSnapshotStream = new EventPublisher<>();
 
     /**
-     * Binds the service and initializes all members (except lastViewTree, which is set to null)
-     * to empty or default values (empty sets, "", false) to make sure they don't need to be checked
-     * for null. Do not call this method, this is done by Android using bindService.
+     * Binds the service and resets its state to ListenerState.INITIAL, i.e., to empty or
+     * default values (empty sets, "", false) to make sure they don't need to be checked
+     * for null (except for the view tree and scroll position, which are null). Do not call
+     * this method, this is done by Android using bindService.
      */
     @Nullable
     @Override
     public final IBinder onBind(Intent intent) {
-        this.lastActivity = "";
-        this.lastLayouts = new TreeSet<>(new CollatorWrapper());
-        this.lastInteraction = new LinkedList<>();
-        this.lastNotification = "";
-        this.screenOff = false;
-        this.enabledApps = new TreeSet<>(new CollatorWrapper());
-        this.lastViewTree = null;
-        this.lastScrollPosition = null;
+        mState = ListenerState.INITIAL;
+        mHistory = new ListenerHistory(getHistoryCapacity());
+        mMaxAppPartitions = Math.max(0, getMaxAppPartitions());
+        synchronized (mAppPartitions) {
+            mAppPartitions.clear();
+        }
+        mAppClosed = false;
+        mLowPower = false;
+        mHandler.reset();
+        Collection<String> patterns = getAssociatedAppPatterns();
+        PackageFilter packageFilter = patterns != null ? new PackageFilter(patterns) : null;
+        mPackageFilter = packageFilter != null && !packageFilter.matchesAll() ? packageFilter : null;
+
+        if (mMetaInformationCache == null)
+            mMetaInformationCache = new AppMetaInformationCache(this);
+        mMetaInformationCache.load();
 
         onServiceBound();
         return mMessenger.getBinder();
@@ -221,72 +646,220 @@ public abstract class CoastDoveListenerService extends Service {
         // Since the core is already disconnected, it cannot send MSG_APP_DISABLED
         // messages. We disable all apps here to make sure the user-implemented
         // callback method is called.
-        Collection<String> enabledAppsCopy = new LinkedList<>(this.enabledApps);
-        for (String app : enabledAppsCopy)
+        for (String app : mState.getEnabledApps())
             appDisabled(app);
 
         onServiceUnbound();
+        for (NodeAnchor anchor : mNodeAnchors)
+            anchor.hide();
+        mNodeAnchors.clear();
+        mHandler.removeCallbacks(mRequestNodeAnchorTree);
+        mNodeAnchorTreeRequestedAt = 0L;
+        if (mOverlayManager != null)
+            mOverlayManager.removeAll();
+        if (mTriggerEngine != null)
+            mTriggerEngine.reset();
+        completeStreams();
+        if (mMetaInformationCache != null)
+            mMetaInformationCache.close();
+        mCallbackWatchdog.shutdown();
         return super.onUnbind(intent);
     }
 
     /** Internal wrapper for onAppEnabled */
     private void appEnabled(String appPackageName) {
-        this.enabledApps.add(appPackageName);
+        mState = mState.withEnabledApp(appPackageName, true);
         onAppEnabled(appPackageName);
+        stateChanged();
     }
 
     /** Internal wrapper for onAppDisabled */
     private void appDisabled(String appPackageName) {
-        this.enabledApps.remove(appPackageName);
+        mState = mState.withEnabledApp(appPackageName, false);
+        synchronized (mAppPartitions) {
+            mAppPartitions.remove(appPackageName);
+        }
         onAppDisabled(appPackageName);
+        stateChanged();
+    }
+
+    /** Internal wrapper for onMetaInformationDelivered */
+    private void metaInformationDelivered(String appPackageName, AppMetaInformation metaInformation) {
+        if (mMetaInformationCache != null)
+            mMetaInformationCache.put(appPackageName, metaInformation);
+        onMetaInformationDelivered(appPackageName, metaInformation);
     }
 
     /** Internal wrapper for onAppOpened */
     private void appOpened(String appPackageName) {
-        this.lastAppPackageName = appPackageName;
-        onAppOpened();
+        if (appPackageName != null && !appPackageName.equals(mState.getAppPackageName()))
+            switchApp(appPackageName);
+        mAppClosed = false;
+        updateLowPowerMode();
+        updateHistoryPaused();
+        onAppOpened(appPackageName);
+        mAppOpenedStream.publish(appPackageName);
+        stateChanged();
+    }
+
+    /**
+     * Keeps the state and history of the current app in its partition, and restores those
+     * of the given app, if kept, including its last view tree
+     */
+    private void switchApp(String appPackageName) {
+        ListenerState current = mState;
+        AppPartition partition;
+        synchronized (mAppPartitions) {
+            mHistory.pause(mHandler.eventTime());
+            if (!current.getAppPackageName().isEmpty())
+                mAppPartitions.put(current.getAppPackageName(), new AppPartition(current, mHistory));
+            partition = mAppPartitions.remove(appPackageName);
+            while (mAppPartitions.size() > mMaxAppPartitions)
+                mAppPartitions.remove(mAppPartitions.keySet().iterator().next());
+        }
+        if (partition != null) {
+            mHistory = partition.history;
+            mState = partition.state.withGlobalStateOf(current);
+        }
+        else {
+            mHistory = new ListenerHistory(mHistory.getActivities().capacity());
+            mState = ListenerState.INITIAL.withGlobalStateOf(current).withAppPackageName(appPackageName);
+        }
+        for (int i = 0; i < mNodeAnchors.size(); ++i)
+            mNodeAnchors.get(i).update(mState.getViewTree(), mState.getScrollPosition());
     }
 
     /** Internal wrapper for onAppClosed */
     private void appClosed() {
-        onAppClosed();
+        mAppClosed = true;
+        updateLowPowerMode();
+        updateHistoryPaused();
+        onAppClosed(mState.getAppPackageName());
+        mAppClosedStream.publish(mState.getAppPackageName());
     }
 
     /** Internal wrapper for onActivityDetected */
     private void activityDetected(String activity) {
-        this.lastActivity = activity;
-        onActivityDetected(lastActivity);
+        mState = mState.withActivity(activity);
+        mHistory.recordActivity(mHandler.eventTime(), activity);
+        onActivityDetected(mState.getAppPackageName(), activity);
+        mActivityStream.publish(activity);
+        stateChanged();
     }
 
     /** Internal wrapper for onLayoutsDetected */
-    private void layoutsDetected(Set<String> layouts) {
-        this.lastLayouts = new TreeSet<>(new CollatorWrapper());
-        this.lastLayouts.addAll(layouts);
-        onLayoutsDetected(lastLayouts);
+    private void layoutsDetected(LayoutSet layouts) {
+        LayoutSet previous = mState.getLayouts();
+        mState = mState.withLayouts(layouts);
+        mHistory.recordLayouts(mHandler.eventTime(), layouts);
+        onLayoutsDetected(mState.getAppPackageName(), layouts);
+        if (!layouts.equals(previous))
+            onLayoutsChanged(mState.getAppPackageName(), layouts.minus(previous), previous.minus(layouts));
+        mLayoutStream.publish(layouts);
+        stateChanged();
     }
 
     /** Internal wrapper for onInteractionDetected */
     private void interactionDetected(Collection<InteractionEventData> interaction, EventType eventType) {
-        this.lastInteraction = new LinkedList<>(interaction);
-        onInteractionDetected(lastInteraction, eventType);
+        ListenerState state = mState.withInteraction(interaction);
+        mState = state;
+        mHistory.recordInteraction(mHandler.eventTime(), state.getInteraction());
+        onInteractionDetected(state.getAppPackageName(), state.getInteraction(), eventType);
+        mInteractionStream.publish(state.getInteraction());
+        stateChanged();
     }
 
     /** Internal wrapper for onNotificationDetected */
     private void notificationDetected(String notification) {
-        this.lastNotification = notification;
-        onNotificationDetected(notification);
+        mState = mState.withNotification(notification);
+        mHistory.recordNotification(mHandler.eventTime(), notification);
+        onNotificationDetected(mState.getAppPackageName(), notification);
+        mNotificationStream.publish(notification);
+        stateChanged();
     }
 
     /** Internal wrapper for onScreenStateDetected */
     private void screenStateDetected(boolean screenOff) {
-        this.screenOff = screenOff;
+        mState = mState.withScreenOff(screenOff);
+        updateLowPowerMode();
+        updateHistoryPaused();
         onScreenStateDetected(screenOff);
+        mScreenStateStream.publish(screenOff);
+        stateChanged();
+    }
+
+    /**
+     * Requests a view tree to update the node anchors, as their nodes may have moved,
+     * unless one has been requested already and is not overdue
+     */
+    private void requestNodeAnchorTree() {
+        if (mNodeAnchors.isEmpty() || mReplyMessenger == null || mLowPower)
+            return;
+        long now = SystemClock.uptimeMillis();
+        if (mNodeAnchorTreeRequestedAt != 0L && now - mNodeAnchorTreeRequestedAt < NODE_ANCHOR_TREE_TIMEOUT_MILLIS)
+            return;
+        if (sendViewTreeRequest(null, true, VIEW_TREE_REQUEST_NODE_ANCHORS))
+            mNodeAnchorTreeRequestedAt = now;
+    }
+
+    /** Requests a view tree for the node anchors once no scroll position has been detected for a while */
+    private void scheduleNodeAnchorTree() {
+        if (mNodeAnchors.isEmpty())
+            return;
+        mHandler.removeCallbacks(mRequestNodeAnchorTree);
+        mHandler.postDelayed(mRequestNodeAnchorTree, NODE_ANCHOR_TREE_DELAY_MILLIS);
+    }
+
+
+    /** Called when a view tree is dropped (filtered or in low-power mode), which may have been requested for the node anchors */
+    private void viewTreeDropped() {
+        mNodeAnchorTreeRequestedAt = 0L;
+    }
+
+    /** Updates the node anchors with a view tree requested for them, without calling onViewTreeReceived */
+    private void nodeAnchorTreeReceived(ViewTreeNode viewTree) {
+        mNodeAnchorTreeRequestedAt = 0L;
+        for (int i = 0; i < mNodeAnchors.size(); ++i)
+            mNodeAnchors.get(i).update(viewTree, mState.getScrollPosition());
+    }
+
+    /**
+     * Enters low-power mode if the screen is off or the associated app is closed,
+     * and leaves it otherwise. Messages deferred are handled by the IncomingHandler
+     * once the current message has been handled.
+     */
+    private void updateLowPowerMode() {
+        boolean lowPower = mLowPowerModeEnabled && (mState.isScreenOff() || mAppClosed);
+        if (lowPower == mLowPower)
+            return;
+        mLowPower = lowPower;
+        if (lowPower) {
+            mHandler.removeCallbacks(mRequestNodeAnchorTree);
+        }
+        else {
+            // Requests sent before may have been dropped, and the nodes may have moved since
+            mNodeAnchorTreeRequestedAt = 0L;
+            scheduleNodeAnchorTree();
+        }
+        onLowPowerModeChanged(lowPower);
     }
 
-    /** Internal wrapper for onViewTreeReceived */
+    /** Lets the history accrue dwell times only while the app is open and the screen is on */
+    private void updateHistoryPaused() {
+        if (mState.isScreenOff() || mAppClosed)
+            mHistory.pause(mHandler.eventTime());
+        else
+            mHistory.resume(mHandler.eventTime());
+    }
+
+    /** Internal wrapper for onViewTreeReceived, also updating the node anchors */
     private void viewTreeReceived(ViewTreeNode viewTree) {
-        this.lastViewTree = viewTree;
-        onViewTreeReceived(viewTree);
+        mState = mState.withViewTree(viewTree);
+        for (int i = 0; i < mNodeAnchors.size(); ++i)
+            mNodeAnchors.get(i).update(viewTree, mState.getScrollPosition());
+        onViewTreeReceived(mState.getAppPackageName(), viewTree);
+        mViewTreeStream.publish(viewTree);
+        stateChanged();
     }
 
     /** Internal wrapper for onActionSuccessful */
@@ -301,8 +874,91 @@ public abstract class CoastDoveListenerService extends Service {
 
     /** Internal wrapper for onScrollPositionDetected */
     private void scrollPositionDetected(ScrollPosition scrollPosition) {
-        this.lastScrollPosition = scrollPosition;
-        onScrollPositionDetected(scrollPosition);
+        mState = mState.withScrollPosition(scrollPosition);
+        mHistory.recordScrollPosition(mHandler.eventTime(), scrollPosition);
+        for (int i = 0; i < mNodeAnchors.size(); ++i)
+            mNodeAnchors.get(i).scrolled(scrollPosition);
+        scheduleNodeAnchorTree();
+        onScrollPositionDetected(mState.getAppPackageName(), scrollPosition);
+        mScrollPositionStream.publish(scrollPosition);
+        stateChanged();
+    }
+
+    /**
+     * Evaluates the triggers affected by the new state and publishes it to the snapshot
+     * stream, if anyone has subscribed
+     */
+    private void stateChanged() {
+        if (mTriggerEngine != null)
+            mTriggerEngine.update(mState);
+        if (mSnapshotStream.hasSubscribers())
+            mSnapshotStream.publish(mState);
+    }
+
+    /**
+     * Completes all event streams, delivering events still buffered to subscribers with
+     * demand, and replaces them with new streams for the next binding
+     */
+    private void completeStreams() {
+        mAppOpenedStream.complete();
+        mAppOpenedStream = new EventPublisher<>();
+        mAppClosedStream.complete();
+        mAppClosedStream = new EventPublisher<>();
+        mActivityStream.complete();
+        mActivityStream = new EventPublisher<>();
+        mLayoutStream.complete();
+        mLayoutStream = new EventPublisher<>();
+        mInteractionStream.complete();
+        mInteractionStream = new EventPublisher<>();
+        mNotificationStream.complete();
+        mNotificationStream = new EventPublisher<>();
+        mScreenStateStream.complete();
+        mScreenStateStream = new EventPublisher<>();
+        mViewTreeStream.complete();
+        mViewTreeStream = new EventPublisher<>();
+        mScrollPositionStream.complete();
+        mScrollPositionStream = new EventPublisher<>();
+        mSnapshotStream.complete();
+        mSnapshotStream = new EventPublisher<>();
+    }
+
+    /**
+     * Returns the AppMetaInformation delivered for the installed version of the given app
+     * previously, possibly while bound previously, or null if there is none
+     * @param appPackageName    App to get the meta information for
+     */
+    public final AppMetaInformation getCachedMetaInformation(String appPackageName) {
+        if (mMetaInformationCache == null)
+            return null;
+        return mMetaInformationCache.get(appPackageName);
+    }
+
+    /**
+     * Adds the timestamps used for latency measurements to data sent from Coast Dove core
+     * to a listener, i.e., the time the event was detected (DATA_EVENT_TIMESTAMP) and the
+     * current time as the time of sending (DATA_SEND_TIMESTAMP)
+     * @param data              Data to be sent
+     * @param eventTimestamp    SystemClock.elapsedRealtimeNanos at which the event was detected
+     */
+    public static void putTimestamps(Bundle data, long eventTimestamp) {
+        data.putLong(DATA_EVENT_TIMESTAMP, eventTimestamp);
+        data.putLong(DATA_SEND_TIMESTAMP, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Adds Bloom filters of the layouts (DATA_LAYOUTS_FILTER) and of the view tree's
+     * resource IDs (DATA_VIEW_TREE_RESOURCE_ID_FILTER) to data sent from Coast Dove core
+     * to a listener, if the data contains layouts or a view tree, so that listeners do not
+     * need to build them while decoding
+     * @param data    Data to be sent
+     */
+    public static void putMembershipFilters(Bundle data) {
+        long[] layoutsFilter = LayoutSet.filterBits(data.getStringArray(DATA_LAYOUTS));
+        if (layoutsFilter != null)
+            data.putLongArray(DATA_LAYOUTS_FILTER, layoutsFilter);
+        ViewTreeNode viewTree = data.getParcelable(DATA_VIEW_TREE);
+        if (viewTree != null)
+            data.putLongArray(DATA_VIEW_TREE_RESOURCE_ID_FILTER, viewTree.getResourceIDFilter().toLongArray());
     }
 
     /**
@@ -311,6 +967,30 @@ public abstract class CoastDoveListenerService extends Service {
      * @param appPackageName    App to request meta information for
      */
     public final void requestMetaInformation(String appPackageName) {
+        requestMetaInformation(appPackageName, false);
+    }
+
+    /**
+     * Requests AppMetaInformation. Will be delivered using onMetaInformationDelivered,
+     * which is always called asynchronously.
+     * @param appPackageName    App to request meta information for
+     * @param useCache          If true and meta information for the installed version of
+     *                          the app has been delivered before (possibly while bound
+     *                          previously), it is delivered from the cache without asking
+     *                          Coast Dove core
+     */
+    public final void requestMetaInformation(final String appPackageName, boolean useCache) {
+        final AppMetaInformation cached = useCache ? getCachedMetaInformation(appPackageName) : null;
+        if (cached != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onMetaInformationDelivered(appPackageName, cached);
+                }
+            });
+            return;
+        }
+
         Bundle data = new Bundle();
         data.putString(DATA_APP_PACKAGE_NAME, appPackageName);
         int type = REPLY_REQUEST_META_INFORMATION;
@@ -326,7 +1006,7 @@ public abstract class CoastDoveListenerService extends Service {
 
     /**
      * Requests a view tree from Coast Dove core, which is a copy of the original
-     * AccessibilityNodeInfo tree.
+     * AccessibilityNodeInfo tree. Does nothing in low-power mode (see setLowPowerModeEnabled).
      * @param startNodeResource    If this is null, the root of the view tree will be requested.
      *                             Otherwise, the core will look for a NodeInfo whose
      *                             viewIdResourceName ends with this parameter's string, and if
@@ -336,22 +1016,84 @@ public abstract class CoastDoveListenerService extends Service {
      *                             only the node itself is delivered.
      */
     public final void requestViewTree(String startNodeResource, boolean includeSubTree) {
+        if (mLowPower)
+            return;
+        sendViewTreeRequest(startNodeResource, includeSubTree, VIEW_TREE_REQUEST_USER);
+    }
+
+    /**
+     * Sends a view tree request to Coast Dove core (see requestViewTree)
+     * @param requestID    VIEW_TREE_REQUEST_USER or VIEW_TREE_REQUEST_NODE_ANCHORS
+     * @return True if the request has been sent
+     */
+    private boolean sendViewTreeRequest(String startNodeResource, boolean includeSubTree, int requestID) {
+        if (mReplyMessenger == null)
+            return false;
         Bundle data = new Bundle();
         int type;
         type = includeSubTree ? REPLY_REQUEST_VIEW_TREE : REPLY_REQUEST_VIEW_TREE_NODE;
 
         if (startNodeResource != null)
             data.putString(DATA_VIEW_TREE_START_NODE_RESOURCE, startNodeResource);
+        data.putInt(DATA_VIEW_TREE_REQUEST_ID, requestID);
 
         Message msg = Message.obtain(null, type, 0, 0);
         msg.setData(data);
         try {
             mReplyMessenger.send(msg);
+            return true;
         } catch (RemoteException e) {
             Log.e("Listener", "Unable to send reply (requestViewTree): " + e.getMessage());
+            return false;
         }
     }
 
+    /**
+     * Adds an overlay anchored to a node. The anchor is updated with the last view tree
+     * received right away, and with every view tree received afterwards. When a scroll
+     * position is detected, the anchors are moved by the distance estimated from it; once
+     * scrolling has stopped, a view tree is requested to correct them, which is not
+     * delivered to onViewTreeReceived. Must be called on the main thread; anchors are
+     * removed when the service is unbound.
+     * @param anchor    Anchor to add
+     */
+    public final void addNodeAnchor(NodeAnchor anchor) {
+        mNodeAnchors.add(anchor);
+        anchor.update(mState.getViewTree(), mState.getScrollPosition());
+    }
+
+    /**
+     * Removes an overlay anchored to a node, hiding it. Must be called on the main thread.
+     * @param anchor    Anchor to remove
+     */
+    public final void removeNodeAnchor(NodeAnchor anchor) {
+        if (mNodeAnchors.remove(anchor))
+            anchor.hide();
+    }
+
+    /**
+     * Returns the overlay manager of this module. All overlays added to it are removed
+     * when the service is unbound, after onServiceUnbound has been called. Must be called
+     * on the main thread.
+     */
+    public final OverlayManager getOverlayManager() {
+        if (mOverlayManager == null)
+            mOverlayManager = new OverlayManager();
+        return mOverlayManager;
+    }
+
+    /**
+     * Returns the trigger engine of this module. Its triggers are evaluated after the
+     * callback methods have been called for each event. Must be called on the main thread.
+     */
+    public final TriggerEngine getTriggerEngine() {
+        if (mTriggerEngine == null) {
+            mTriggerEngine = new TriggerEngine();
+            mTriggerEngine.update(mState);
+        }
+        return mTriggerEngine;
+    }
+
     /**
      * Requests the Coast Dove core to perform an action on a node (an element).
      * This only works on SDK versions >= 21
@@ -479,6 +1221,15 @@ public abstract class CoastDoveListenerService extends Service {
      */
     protected void onAppOpened() { }
 
+    /**
+     * Called by the library when any associated app is put in the foreground. Calls
+     * onAppOpened() by default.
+     * @param appPackageName    App opened
+     */
+    protected void onAppOpened(String appPackageName) {
+        onAppOpened();
+    }
+
     /**
      * Called by the library when any associated app is put in the background
      * (i.e., no activity of an associated app is shown anymore when before it
@@ -486,18 +1237,67 @@ public abstract class CoastDoveListenerService extends Service {
      */
     protected void onAppClosed() { }
 
+    /**
+     * Called by the library when any associated app is put in the background. Calls
+     * onAppClosed() by default.
+     * @param appPackageName    App closed
+     */
+    protected void onAppClosed(String appPackageName) {
+        onAppClosed();
+    }
+
     /**
      * Called by the library whenever a new activity has been detected
      * @param activity    The activity detected
      */
     protected void onActivityDetected(String activity) { }
 
+    /**
+     * Called by the library whenever a new activity has been detected. Calls
+     * onActivityDetected(activity) by default.
+     * @param appPackageName    App in which the activity has been detected
+     * @param activity          The activity detected
+     */
+    protected void onActivityDetected(String appPackageName, String activity) {
+        onActivityDetected(activity);
+    }
+
     /**
      * Called by the library whenever a new set of layouts has been detected
-     * @param layouts    Layouts detected
+     * @param layouts    Layouts detected (an immutable LayoutSet, sorted by String.compareTo;
+     *                   use LayoutSet.toCollatedSet for locale-aware order)
      */
     protected void onLayoutsDetected(Set<String> layouts) { }
 
+    /**
+     * Called by the library whenever a new set of layouts has been detected. Calls
+     * onLayoutsDetected(layouts) by default.
+     * @param appPackageName    App in which the layouts have been detected
+     * @param layouts           Layouts detected
+     */
+    protected void onLayoutsDetected(String appPackageName, Set<String> layouts) {
+        onLayoutsDetected(layouts);
+    }
+
+    /**
+     * Called by the library after onLayoutsDetected if the layouts differ from the last ones
+     * detected (in the same app); not called if they are the same
+     * @param added      Layouts detected now but not before (LayoutSet)
+     * @param removed    Layouts detected before but not now (LayoutSet)
+     */
+    protected void onLayoutsChanged(Set<String> added, Set<String> removed) { }
+
+    /**
+     * Called by the library if the layouts differ from the last ones detected. Calls
+     * onLayoutsChanged(added, removed) by default.
+     * @param appPackageName    App in which the layouts have been detected
+     * @param added             Layouts detected now but not before
+     * @param removed           Layouts detected before but not now
+     */
+    protected void onLayoutsChanged(String appPackageName, Set<String> added, Set<String> removed) {
+        onLayoutsChanged(added, removed);
+    }
+
     /**
      * Called by the library whenever a new interaction has been detected
      * @param interaction    Interaction detected
@@ -505,18 +1305,47 @@ public abstract class CoastDoveListenerService extends Service {
      */
     protected void onInteractionDetected(Collection<InteractionEventData> interaction, EventType eventType) { }
 
+    /**
+     * Called by the library whenever a new interaction has been detected. Calls
+     * onInteractionDetected(interaction, eventType) by default.
+     * @param appPackageName    App in which the interaction has been detected
+     * @param interaction       Interaction detected
+     * @param eventType         Type of event
+     */
+    protected void onInteractionDetected(String appPackageName, Collection<InteractionEventData> interaction,
+                                         EventType eventType) {
+        onInteractionDetected(interaction, eventType);
+    }
+
     /**
      * Called by the library whenever a new notification has been detected
      * @param notification    Notification detected
      */
     protected void onNotificationDetected(String notification) { }
 
+    /**
+     * Called by the library whenever a new notification has been detected. Calls
+     * onNotificationDetected(notification) by default.
+     * @param appPackageName    App opened last
+     * @param notification      Notification detected
+     */
+    protected void onNotificationDetected(String appPackageName, String notification) {
+        onNotificationDetected(notification);
+    }
+
     /**
      * Called by the library whenever the screen state has changed (turned off or on)
      * @param screenOff    Whether the screen has been turned off or on (true if off)
      */
     protected void onScreenStateDetected(boolean screenOff) { }
 
+    /**
+     * Called by the library when low-power mode has been entered or left (see
+     * setLowPowerModeEnabled). Stop any periodic work of the module while in low-power mode.
+     * @param lowPower    True if low-power mode has been entered, false if it has been left
+     */
+    protected void onLowPowerModeChanged(boolean lowPower) { }
+
     /**
      * Called by the library when a view tree has been received. Use requestViewTree
      * to request one.
@@ -524,6 +1353,16 @@ public abstract class CoastDoveListenerService extends Service {
      */
     protected void onViewTreeReceived(ViewTreeNode viewTree) { }
 
+    /**
+     * Called by the library when a view tree has been received. Calls
+     * onViewTreeReceived(viewTree) by default.
+     * @param appPackageName    App to which the view tree belongs
+     * @param viewTree          ViewTree received
+     */
+    protected void onViewTreeReceived(String appPackageName, ViewTreeNode viewTree) {
+        onViewTreeReceived(viewTree);
+    }
+
     /**
      * Called by the library when an action previously requested has been executed
      * successfully. Use requestAction to request an action to be executed.
@@ -546,46 +1385,341 @@ public abstract class CoastDoveListenerService extends Service {
      */
     protected void onScrollPositionDetected(ScrollPosition scrollPosition) { }
 
+    /**
+     * Called by the library when a scroll position has been detected. Calls
+     * onScrollPositionDetected(scrollPosition) by default.
+     * @param appPackageName    App in which the scroll position has been detected
+     * @param scrollPosition    Scroll position detected
+     */
+    protected void onScrollPositionDetected(String appPackageName, ScrollPosition scrollPosition) {
+        onScrollPositionDetected(scrollPosition);
+    }
+
+    /**
+     * Called by the library right before the callback of an event that is older than the
+     * latency SLO set with setLatencySlo
+     * @param messageType      Type of the message (one of the MSG_* constants)
+     * @param eventAgeNanos    Age of the event, in nanoseconds
+     */
+    protected void onLatencySloViolated(int messageType, long eventAgeNanos) { }
+
+    /**
+     * Called by the library after a callback took longer than the time budget set with
+     * setCallbackBudget. Use this to report slow callbacks, e.g., by logging the overrun's
+     * stack trace.
+     * @param overrun    Details on the callback, including the dispatch thread's stack
+     *                   at the time the budget ran out
+     */
+    protected void onCallbackOverBudget(CallbackOverrun overrun) { }
+
+
+
+    /**
+     * Stream of package names of apps opened. Like all event streams, it delivers events
+     * after the corresponding callback method has been called, on the main thread, and
+     * completes when the service is unbound; subscribe in onServiceBound. Events are decoded
+     * once for all subscribers; a subscriber that requests fewer events than are detected
+     * loses the oldest ones.
+     */
+    public final EventStream<String> getAppOpenedStream() {
+        return mAppOpenedStream;
+    }
 
+    /** Stream of package names of apps closed (see getAppOpenedStream) */
+    public final EventStream<String> getAppClosedStream() {
+        return mAppClosedStream;
+    }
+
+    /** Stream of activities detected (see getAppOpenedStream) */
+    public final EventStream<String> getActivityStream() {
+        return mActivityStream;
+    }
+
+    /** Stream of layouts detected (see getAppOpenedStream) */
+    public final EventStream<LayoutSet> getLayoutStream() {
+        return mLayoutStream;
+    }
+
+    /** Stream of interactions detected, unmodifiable (see getAppOpenedStream) */
+    public final EventStream<List<InteractionEventData>> getInteractionStream() {
+        return mInteractionStream;
+    }
+
+    /** Stream of notifications detected (see getAppOpenedStream) */
+    public final EventStream<String> getNotificationStream() {
+        return mNotificationStream;
+    }
+
+    /** Stream of screen states detected, true if the screen is off (see getAppOpenedStream) */
+    public final EventStream<Boolean> getScreenStateStream() {
+        return mScreenStateStream;
+    }
+
+    /** Stream of view trees received (see getAppOpenedStream) */
+    public final EventStream<ViewTreeNode> getViewTreeStream() {
+        return mViewTreeStream;
+    }
+
+    /** Stream of scroll positions detected (see getAppOpenedStream) */
+    public final EventStream<ScrollPosition> getScrollPositionStream() {
+        return mScrollPositionStream;
+    }
+
+    /**
+     * Stream of snapshots (see getSnapshot), one after each event that changes the state
+     * (see getAppOpenedStream)
+     */
+    public final EventStream<ListenerState> getSnapshotStream() {
+        return mSnapshotStream;
+    }
+
+    /**
+     * Returns the state as detected so far. All values of the snapshot belong together,
+     * e.g., its layouts were detected in its activity, and it never changes; later events
+     * replace the service's state with a new snapshot.
+     */
+    public final ListenerState getSnapshot() {
+        return mState;
+    }
+
+    /**
+     * Returns the state of the given app as detected when it was last in the foreground,
+     * or the current state if it is the current app. Up to getMaxAppPartitions recent apps
+     * are kept besides the current one.
+     * @param appPackageName    App to get the state of
+     * @return State of the app, or null if it is not kept
+     */
+    public final ListenerState getSnapshot(String appPackageName) {
+        ListenerState state = mState;
+        if (state.getAppPackageName().equals(appPackageName))
+            return state;
+        synchronized (mAppPartitions) {
+            AppPartition partition = mAppPartitions.get(appPackageName);
+            return partition != null ? partition.state : null;
+        }
+    }
+
+    /**
+     * Returns the recent activities, layouts, interactions, notifications and scroll
+     * positions detected in the current app since the service was bound, with their
+     * timestamps. The number of entries kept per event type is given by getHistoryCapacity.
+     */
+    public final ListenerHistory getHistory() {
+        return mHistory;
+    }
+
+    /**
+     * Returns the history of the given app (see getHistory), or null if it is not kept
+     * @param appPackageName    App to get the history of
+     */
+    public final ListenerHistory getHistory(String appPackageName) {
+        ListenerHistory history = mHistory;
+        if (mState.getAppPackageName().equals(appPackageName))
+            return history;
+        synchronized (mAppPartitions) {
+            AppPartition partition = mAppPartitions.get(appPackageName);
+            return partition != null ? partition.history : null;
+        }
+    }
+
+    /**
+     * Maximum number of apps, besides the current one, whose state and history are kept
+     * when another app is opened. Override to keep more or fewer; called when the service
+     * is bound. 0 keeps nothing, i.e., an app's state starts over whenever it is opened;
+     * negative values are treated as 0.
+     */
+    protected int getMaxAppPartitions() {
+        return DEFAULT_MAX_APP_PARTITIONS;
+    }
+
+    /**
+     * Returns the associated apps of this module, which may contain patterns with '*'
+     * (e.g., "com.example.*"). Events of apps not matching any of them are dropped before
+     * being decoded. By default, this returns null, i.e., events of all apps are received.
+     * Called on the main thread when the service is bound, so an override should not block;
+     * CoastDoveModules.getRegisteredAssociatedApps returns the associated apps last
+     * registered, but reads shared preferences, which may have to be loaded from disk.
+     */
+    protected Collection<String> getAssociatedAppPatterns() {
+        return null;
+    }
+
+    /**
+     * Number of entries kept per event type in the history (see getHistory). Override to
+     * keep more or fewer entries; called when the service is bound.
+     */
+    protected int getHistoryCapacity() {
+        return ListenerHistory.DEFAULT_CAPACITY;
+    }
+
+    /**
+     * Enables or disables low-power mode (enabled by default). While the screen is off or
+     * the associated app is closed, the service is in low-power mode: activities, layouts
+     * and scroll positions are not decoded, and only the latest of each is handled once
+     * low-power mode is left, i.e., when the screen is turned on or the app is opened.
+     * Interactions and view trees are dropped, and requestViewTree does nothing. Other
+     * messages are handled as usual.
+     * @param enabled    Whether low-power mode is entered automatically
+     */
+    public final void setLowPowerModeEnabled(boolean enabled) {
+        mLowPowerModeEnabled = enabled;
+        mHandler.post(mUpdateLowPowerMode);
+    }
+
+    /** Whether low-power mode is entered automatically */
+    public final boolean isLowPowerModeEnabled() {
+        return mLowPowerModeEnabled;
+    }
+
+    /** Whether the service is currently in low-power mode (see setLowPowerModeEnabled) */
+    public final boolean isLowPowerMode() {
+        return mLowPower;
+    }
 
     /** Last package name detected, or "" if none so far */
     public final String getLastAppPackageName() {
-        return lastAppPackageName;
+        return mState.getAppPackageName();
     }
 
     /** Last activity detected, or "" if none so far */
     public final String getLastActivity() {
-        return lastActivity;
+        return mState.getActivity();
     }
 
-    /** Last layouts detected (empty set if none) */
+    /** Last layouts detected (empty set if none), immutable */
     public final Set<String> getLastLayouts() {
-        return lastLayouts;
+        return mState.getLayouts();
     }
 
-    /** Last interaction detected (empty set if none) */
+    /** Last interaction detected (empty if none), unmodifiable */
     public final Collection<InteractionEventData> getLastInteraction() {
-        return lastInteraction;
+        return mState.getInteraction();
     }
 
     /** Last notification detected, or "" if none so far */
     public final String getLastNotification() {
-        return lastNotification;
+        return mState.getNotification();
     }
 
     /** Whether the screen is currently off, according to the last
      *  screen state detected (false by default) */
     public final boolean isScreenOff() {
-        return screenOff;
+        return mState.isScreenOff();
+    }
+
+    /** Apps for which this module is enabled, immutable */
+    public final Set<String> getEnabledApps() {
+        return mState.getEnabledApps();
     }
 
     /** Last viewtree received, if ever requested using requestViewTree */
     public final ViewTreeNode getLastViewTree() {
-        return lastViewTree;
+        return mState.getViewTree();
     }
 
     /** Last scroll position detected */
     public final ScrollPosition getLastScrollPosition() {
-        return lastScrollPosition;
+        return mState.getScrollPosition();
+    }
+
+    /**
+     * Returns a consistent copy of the dispatch metrics recorded so far, i.e., message
+     * counts, decode and callback latencies, payload sizes and view tree node counts.
+     * Safe to call from any thread.
+     */
+    public final DispatchMetrics.Snapshot getDispatchMetrics() {
+        return mDispatchMetrics.snapshot();
+    }
+
+    /** Resets all dispatch metrics to zero. Safe to call from any thread. */
+    public final void resetDispatchMetrics() {
+        mDispatchMetrics.reset();
+    }
+
+    /**
+     * Age of the event currently delivered, i.e., time from the core detecting it until
+     * its callback was called, in nanoseconds. Only valid within a callback, and -1 if
+     * the core did not send an event timestamp.
+     */
+    public final long getCurrentEventAgeNanos() {
+        return mEventAgeNanos;
+    }
+
+    /**
+     * Queue delay of the event currently delivered, i.e., time from the core sending it
+     * until it was handled here, in nanoseconds. Only valid within a callback, and -1 if
+     * the core did not send a send timestamp.
+     */
+    public final long getCurrentQueueDelayNanos() {
+        return mQueueDelayNanos;
+    }
+
+    /**
+     * Sets the latency SLO, i.e., the maximum age an event may have when its callback is
+     * called. Older events are counted (see DispatchMetrics.Snapshot.getSloViolations) and
+     * reported using onLatencySloViolated.
+     * @param maxEventAgeNanos    Maximum event age in nanoseconds, or 0 to disable
+     */
+    public final void setLatencySlo(long maxEventAgeNanos) {
+        mLatencySloNanos = maxEventAgeNanos;
+    }
+
+    /** Latency SLO in nanoseconds, or 0 if disabled */
+    public final long getLatencySlo() {
+        return mLatencySloNanos;
+    }
+
+    /**
+     * Sets the time budget for callbacks of the given message type, e.g., the budget for
+     * onViewTreeReceived using MSG_VIEW_TREE. Callbacks taking longer are counted (see
+     * DispatchMetrics.Snapshot.getCallbacksOverBudget) and reported using onCallbackOverBudget,
+     * along with the dispatch thread's stack when the budget ran out.
+     * @param messageType     One of the MSG_* constants
+     * @param budgetMillis    Budget in milliseconds, or 0 for no budget (the default)
+     */
+    public final void setCallbackBudget(int messageType, long budgetMillis) {
+        mCallbackWatchdog.setBudget(messageType, budgetMillis * 1000000L);
+    }
+
+    /** Time budget for callbacks of the given message type in milliseconds, 0 if none */
+    public final long getCallbackBudget(int messageType) {
+        return mCallbackWatchdog.getBudget(messageType) / 1000000L;
+    }
+
+    /** Last callback that exceeded its time budget, or null if none so far */
+    public final CallbackOverrun getLastCallbackOverrun() {
+        return mLastCallbackOverrun;
+    }
+
+    /**
+     * Enables or disables measuring the size of incoming messages for the dispatch metrics
+     * (getPayloadBytesTotal and getPayloadBytesMax). Disabled by default, as each message
+     * handled is written to a Parcel again to measure it; messages filtered or dropped
+     * in low-power mode are not measured.
+     * @param enabled    Whether to measure the size of incoming messages
+     */
+    public final void setPayloadMeasurementEnabled(boolean enabled) {
+        mPayloadMeasurementEnabled = enabled;
+    }
+
+    /** Whether the size of incoming messages is measured */
+    public final boolean isPayloadMeasurementEnabled() {
+        return mPayloadMeasurementEnabled;
+    }
+
+    /**
+     * Enables or disables systrace / Perfetto sections around decoding and callbacks
+     * of incoming messages ("CoastDove decode <type>", "CoastDove on<type>"), as well
+     * as the counter track "CoastDove lastViewTree nodes". Disabled by default, takes
+     * effect with the next message.
+     * @param enabled    Whether to emit trace sections
+     */
+    public final void setTracingEnabled(boolean enabled) {
+        mDispatchTracer.setEnabled(enabled);
+    }
+
+    /** Whether trace sections are emitted for incoming messages */
+    public final boolean isTracingEnabled() {
+        return mDispatchTracer.isEnabled();
     }
-}
+}
\ No newline at end of file
@@ -23,11 +23,19 @@ import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.ResultReceiver;
 import android.provider.Settings;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Used to register modules to Coast Dove core
@@ -37,10 +45,70 @@ public abstract class CoastDoveModules {
     public static final String DATA_SERVICE_PACKAGE_NAME = "servicePackageName";
     public static final String DATA_SERVICE_CLASS_NAME = "serviceClassName";
     public static final String DATA_ASSOCIATED_APPS = "associatedApps";
+    /** Associated apps added since the last registration (sent along with DATA_ASSOCIATED_APPS) */
+    public static final String DATA_ASSOCIATED_APPS_ADDED = "associatedAppsAdded";
+    /** Associated apps removed since the last registration (sent along with DATA_ASSOCIATED_APPS) */
+    public static final String DATA_ASSOCIATED_APPS_REMOVED = "associatedAppsRemoved";
+
+    /**
+     * Associated app patterns containing '*' (e.g., "com.example.*"), which are also part of
+     * DATA_ASSOCIATED_APPS. Listeners may drop events of apps not matching any of them (see
+     * CoastDoveListenerService.getAssociatedAppPatterns).
+     */
+    public static final String DATA_ASSOCIATED_APP_PATTERNS = "associatedAppPatterns";
+    /**
+     * ResultReceiver to which Coast Dove core sends RESULT_REGISTERED once it has stored
+     * the registration. Only sent by registerModuleIfChanged.
+     */
+    public static final String DATA_REGISTRATION_RECEIVER = "registrationReceiver";
+    /** Result code sent to DATA_REGISTRATION_RECEIVER */
+    public static final int RESULT_REGISTERED = 1;
+
+    /** Shared preferences in which the last registration of each service is stored */
+    private static final String REGISTRATION_PREFERENCES = "simonlang.coastdove.lib.registration";
+    private static final String KEY_MODULE_NAME = ".moduleName";
+    private static final String KEY_SERVICE_PACKAGE_NAME = ".servicePackageName";
+    private static final String KEY_ASSOCIATED_APPS = ".associatedApps";
+    private static final String KEY_ACKNOWLEDGED = ".acknowledged";
+    /** Whether Coast Dove core has ever acknowledged a registration of this app */
+    private static final String KEY_CORE_ACKNOWLEDGES = "coreAcknowledges";
 
     private static final String REG_SERVICE_PACKAGE = "simonlang.coastdove.core";
     private static final String REG_SERVICE_CLASS = "simonlang.coastdove.core.ipc.ModuleRegisteringService";
 
+    /**
+     * Receives the acknowledgement of a registration from Coast Dove core, and marks the
+     * registration as acknowledged unless another one has been sent meanwhile
+     */
+    private static class RegistrationReceiver extends ResultReceiver {
+        private final Context mContext;
+        private final String mServiceClassName;
+        private final String mModuleName;
+        private final String mServicePackageName;
+        private final Set<String> mAssociatedApps;
+
+        RegistrationReceiver(Context context, String serviceClassName, String moduleName,
+                             String servicePackageName, Set<String> associatedApps) {
+            super(new Handler(Looper.getMainLooper()));
+            mContext = context;
+            mServiceClassName = serviceClassName;
+            mModuleName = moduleName;
+            mServicePackageName = servicePackageName;
+            mAssociatedApps = associatedApps;
+        }
+
+        @Override
+        protected void onReceiveResult(int resultCode, Bundle resultData) {
+            if (resultCode != RESULT_REGISTERED)
+                return;
+            SharedPreferences preferences = preferences(mContext);
+            SharedPreferences.Editor editor = preferences.edit().putBoolean(KEY_CORE_ACKNOWLEDGES, true);
+            if (isStored(preferences, mServiceClassName, mModuleName, mServicePackageName, mAssociatedApps))
+                editor.putBoolean(mServiceClassName + KEY_ACKNOWLEDGED, true);
+            editor.apply();
+        }
+    }
+
     /**
      * Registers a Coast Dove module to the Coast Dove core service. Use this to first register your
      * service, and each time you change your package, your service class, or your associated apps
@@ -50,21 +118,13 @@ public abstract class CoastDoveModules {
      * @param associatedApps    All apps that your service can possibly listen to. Depending on your
      *                          module, this may be only one specific app, a selection of several apps,
      *                          or all apps. In case of the latter, just pass a collection with the
-     *                          String "*" as its only element.
+     *                          String "*" as its only element. Package name patterns, in which '*'
+     *                          stands for any sequence of characters (e.g., "com.example.*"),
+     *                          are supported as well.
      */
     public static void registerModule(Context context, Class<?> serviceClass, String moduleName,
                                       ArrayList<String> associatedApps) {
-        Context appContext = context.getApplicationContext();
-        String servicePackageName = appContext.getPackageName();
-        String serviceClassName = serviceClass.getName();
-
-        Intent intent = new Intent();
-        intent.setComponent(new ComponentName(REG_SERVICE_PACKAGE, REG_SERVICE_CLASS));
-        intent.putExtra(DATA_MODULE_NAME, moduleName);
-        intent.putExtra(DATA_SERVICE_PACKAGE_NAME, servicePackageName);
-        intent.putExtra(DATA_SERVICE_CLASS_NAME, serviceClassName);
-        intent.putStringArrayListExtra(DATA_ASSOCIATED_APPS, associatedApps);
-        appContext.startService(intent);
+        sendRegistration(context.getApplicationContext(), serviceClass.getName(), moduleName, associatedApps, false);
     }
 
     /**
@@ -80,10 +140,167 @@ public abstract class CoastDoveModules {
      */
     public static void registerModule(Context context, Class<?> serviceClass, String moduleName,
                                       String... associatedApps) {
-        ArrayList<String> associatedAppsArrayList = new ArrayList<>(associatedApps.length);
+        registerModule(context, serviceClass, moduleName, toArrayList(associatedApps));
+    }
+
+    /**
+     * Registers a Coast Dove module like registerModule, unless the same registration (module
+     * name, package and associated apps) has been sent before, so that it is safe to call this
+     * on every launch. Once Coast Dove core has acknowledged any registration of this app
+     * (see DATA_REGISTRATION_RECEIVER), a registration is only skipped if the core has
+     * acknowledged it; cores that do not acknowledge registrations are assumed to have
+     * received it once it has been sent to them. Use forgetRegistration to send it
+     * again, e.g., after Coast Dove core's data has been cleared.
+     * @return True if the registration has been sent to Coast Dove core, false if it was
+     *         unchanged or Coast Dove core could not be found
+     */
+    public static boolean registerModuleIfChanged(Context context, Class<?> serviceClass, String moduleName,
+                                                  ArrayList<String> associatedApps) {
+        Context appContext = context.getApplicationContext();
+        String serviceClassName = serviceClass.getName();
+        SharedPreferences preferences = preferences(appContext);
+        boolean acknowledged = preferences.getBoolean(serviceClassName + KEY_ACKNOWLEDGED, false)
+                || !preferences.getBoolean(KEY_CORE_ACKNOWLEDGES, false);
+        if (acknowledged && isStored(preferences, serviceClassName, moduleName, appContext.getPackageName(),
+                                     new HashSet<>(associatedApps)))
+            return false;
+        return sendRegistration(appContext, serviceClassName, moduleName, associatedApps, true);
+    }
+
+    /**
+     * Registers a Coast Dove module unless the same registration has been acknowledged before
+     * (see registerModuleIfChanged(Context, Class, String, ArrayList))
+     * @return True if the registration has been sent to Coast Dove core
+     */
+    public static boolean registerModuleIfChanged(Context context, Class<?> serviceClass, String moduleName,
+                                                  String... associatedApps) {
+        return registerModuleIfChanged(context, serviceClass, moduleName, toArrayList(associatedApps));
+    }
+
+    /**
+     * Sends the full registration, along with the associated apps added and removed since the
+     * last one sent, and stores it (not acknowledged yet)
+     * @param acknowledge    Whether to ask Coast Dove core for an acknowledgement
+     * @return True if Coast Dove core has been found
+     */
+    private static boolean sendRegistration(Context appContext, String serviceClassName, String moduleName,
+                                            ArrayList<String> associatedApps, boolean acknowledge) {
+        String servicePackageName = appContext.getPackageName();
+        Set<String> apps = new HashSet<>(associatedApps);
+        SharedPreferences preferences = preferences(appContext);
+        Set<String> registeredApps = preferences.getStringSet(serviceClassName + KEY_ASSOCIATED_APPS, null);
+
+        Intent intent = new Intent();
+        intent.setComponent(new ComponentName(REG_SERVICE_PACKAGE, REG_SERVICE_CLASS));
+        intent.putExtra(DATA_MODULE_NAME, moduleName);
+        intent.putExtra(DATA_SERVICE_PACKAGE_NAME, servicePackageName);
+        intent.putExtra(DATA_SERVICE_CLASS_NAME, serviceClassName);
+        intent.putStringArrayListExtra(DATA_ASSOCIATED_APPS, associatedApps);
+        if (registeredApps != null) {
+            ArrayList<String> added = new ArrayList<>();
+            for (String app : apps) {
+                if (!registeredApps.contains(app))
+                    added.add(app);
+            }
+            ArrayList<String> removed = new ArrayList<>();
+            for (String app : registeredApps) {
+                if (!apps.contains(app))
+                    removed.add(app);
+            }
+            intent.putStringArrayListExtra(DATA_ASSOCIATED_APPS_ADDED, added);
+            intent.putStringArrayListExtra(DATA_ASSOCIATED_APPS_REMOVED, removed);
+        }
+        // Patterns are sent if there are any, or if there were any before
+        ArrayList<String> patterns = patterns(apps);
+        if (!patterns.isEmpty() || (registeredApps != null && !patterns(registeredApps).isEmpty()))
+            intent.putStringArrayListExtra(DATA_ASSOCIATED_APP_PATTERNS, patterns);
+        if (acknowledge) {
+            intent.putExtra(DATA_REGISTRATION_RECEIVER, toPlainResultReceiver(
+                    new RegistrationReceiver(appContext, serviceClassName, moduleName, servicePackageName, apps)));
+        }
+        if (appContext.startService(intent) == null)
+            return false;
+
+        preferences.edit()
+                .putString(serviceClassName + KEY_MODULE_NAME, moduleName)
+                .putString(serviceClassName + KEY_SERVICE_PACKAGE_NAME, servicePackageName)
+                .putStringSet(serviceClassName + KEY_ASSOCIATED_APPS, apps)
+                .putBoolean(serviceClassName + KEY_ACKNOWLEDGED, false)
+                .apply();
+        return true;
+    }
+
+    /**
+     * Returns a plain ResultReceiver forwarding to the given one. Coast Dove core cannot
+     * unparcel subclasses, which are not on its class path, and would fail to read any of
+     * the intent's extras.
+     */
+    private static ResultReceiver toPlainResultReceiver(ResultReceiver receiver) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            receiver.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return ResultReceiver.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** Indicates whether the given registration is the one stored for the service */
+    private static boolean isStored(SharedPreferences preferences, String serviceClassName, String moduleName,
+                                    String servicePackageName, Set<String> associatedApps) {
+        return moduleName.equals(preferences.getString(serviceClassName + KEY_MODULE_NAME, null))
+                && servicePackageName.equals(preferences.getString(serviceClassName + KEY_SERVICE_PACKAGE_NAME, null))
+                && associatedApps.equals(preferences.getStringSet(serviceClassName + KEY_ASSOCIATED_APPS, null));
+    }
+
+    /** Returns the patterns among the given apps, except for "*" */
+    private static ArrayList<String> patterns(Set<String> apps) {
+        ArrayList<String> result = new ArrayList<>();
+        for (String app : apps) {
+            if (PackageFilter.isPattern(app) && !app.equals("*"))
+                result.add(app);
+        }
+        return result;
+    }
+
+    private static ArrayList<String> toArrayList(String... associatedApps) {
+        ArrayList<String> result = new ArrayList<>(associatedApps.length);
         for (String app : associatedApps)
-            associatedAppsArrayList.add(app);
-        registerModule(context, serviceClass, moduleName, associatedAppsArrayList);
+            result.add(app);
+        return result;
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(REGISTRATION_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the associated apps (including patterns) of the last registration sent for
+     * the given service, or null if it has not been registered from this app. Reads shared
+     * preferences, which are loaded from disk on first access.
+     * @param context         Context
+     * @param serviceClass    .class of your service (which extends CoastDoveListenerService)
+     */
+    public static Set<String> getRegisteredAssociatedApps(Context context, Class<?> serviceClass) {
+        return preferences(context).getStringSet(serviceClass.getName() + KEY_ASSOCIATED_APPS, null);
+    }
+
+    /**
+     * Forgets the last registration of the given service, so that the next call of
+     * registerModuleIfChanged sends it again, e.g., after Coast Dove core's data has been
+     * cleared
+     * @param context         Context
+     * @param serviceClass    .class of your service (which extends CoastDoveListenerService)
+     */
+    public static void forgetRegistration(Context context, Class<?> serviceClass) {
+        String serviceClassName = serviceClass.getName();
+        preferences(context).edit()
+                .remove(serviceClassName + KEY_MODULE_NAME)
+                .remove(serviceClassName + KEY_SERVICE_PACKAGE_NAME)
+                .remove(serviceClassName + KEY_ASSOCIATED_APPS)
+                .remove(serviceClassName + KEY_ACKNOWLEDGED)
+                .apply();
     }
 
 
@@ -22,27 +22,92 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
+/**
+ * Compares strings according to the default locale's collation. Thread-safe: every thread
+ * uses its own clone of the Collator, as Collator itself is not. Collation keys of recently
+ * compared strings are cached per thread, so sorting the same activity and layout names
+ * over and over mostly comes down to comparing their keys.
+ */
 public class CollatorWrapper implements Serializable, Comparator<String> {
     private static final long serialVersionUID = -5418972205681862270L;
 
-    private transient Collator collator;
+    /** Number of collation keys cached per thread */
+    public static final int KEY_CACHE_SIZE = 512;
+
+    /**
+     * Collator and collation key cache of one thread
+     */
+    private static final class ThreadState {
+        /** Locale the collator was created for */
+        final Locale locale;
+        /** This thread's collator */
+        final Collator collator;
+        /** Least recently used collation keys */
+        final LinkedHashMap<String, CollationKey> keys;
+
+        ThreadState(Locale locale) {
+            this.locale = locale;
+            this.collator = (Collator)Collator.getInstance(locale).clone();
+            this.keys = new LinkedHashMap<String, CollationKey>(KEY_CACHE_SIZE * 4 / 3 + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CollationKey> eldest) {
+                    return size() > KEY_CACHE_SIZE;
+                }
+            };
+        }
+
+        CollationKey getKey(String string) {
+            CollationKey key = keys.get(string);
+            if (key == null) {
+                key = collator.getCollationKey(string);
+                keys.put(string, key);
+            }
+            return key;
+        }
+    }
+
+    /** Per-thread collators and caches, shared by all instances */
+    private static final ThreadLocal<ThreadState> sThreadState = new ThreadLocal<>();
 
     public CollatorWrapper() {
-        initCollator();
     }
 
-    private void initCollator() {
-        if (collator == null)
-            this.collator = Collator.getInstance();
+    /**
+     * Returns the calling thread's state, creating it if there is none yet or
+     * if the default locale has changed since
+     */
+    private static ThreadState threadState() {
+        Locale locale = Locale.getDefault();
+        ThreadState state = sThreadState.get();
+        if (state == null || !state.locale.equals(locale)) {
+            state = new ThreadState(locale);
+            sThreadState.set(state);
+        }
+        return state;
+    }
+
+    /**
+     * Returns the (possibly cached) collation key of the given string. Keys are only
+     * comparable to keys returned on the same thread while the default locale is unchanged.
+     * @param string    String to get the key for
+     */
+    public CollationKey getCollationKey(String string) {
+        return threadState().getKey(string);
     }
 
     @Override
     public int compare(String lhs, String rhs) {
-        initCollator();
-        return collator.compare(lhs, rhs);
+        if (lhs == rhs)
+            return 0;
+        ThreadState state = threadState();
+        return state.getKey(lhs).compareTo(state.getKey(rhs));
     }
 
     private void writeObject(final ObjectOutputStream oos) throws IOException {
@@ -53,4 +118,3 @@ public class CollatorWrapper implements Serializable, Comparator<String> {
         ois.defaultReadObject();
     }
 }
-
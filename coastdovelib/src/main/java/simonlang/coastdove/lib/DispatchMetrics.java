@@ -0,0 +1,418 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import java.util.Arrays;
+
+/**
+ * Dispatch instrumentation for CoastDoveListenerService. Counts messages per MSG_* type,
+ * keeps decode and callback latency histograms, Bundle sizes and view tree node counts,
+ * as well as end-to-end latencies for events carrying core timestamps.
+ * Recording never allocates, all values are kept in fixed-size primitive arrays.
+ */
+public class DispatchMetrics {
+    /** Number of distinct MSG_* types, i.e., bits used by CoastDoveListenerService */
+    public static final int MESSAGE_TYPES = 14;
+    /**
+     * Number of latency histogram buckets. Bucket 0 holds durations below 1 microsecond,
+     * bucket i (i > 0) holds durations in [2^(i-1), 2^i) microseconds. The last bucket
+     * also holds everything above.
+     */
+    public static final int LATENCY_BUCKETS = 24;
+
+    /** Messages received per type */
+    private final long[] mMessageCounts = new long[MESSAGE_TYPES];
+    /** Decode latency histograms, MESSAGE_TYPES rows of LATENCY_BUCKETS each */
+    private final long[] mDecodeHistograms = new long[MESSAGE_TYPES * LATENCY_BUCKETS];
+    /** Callback latency histograms, MESSAGE_TYPES rows of LATENCY_BUCKETS each */
+    private final long[] mCallbackHistograms = new long[MESSAGE_TYPES * LATENCY_BUCKETS];
+    /** Total time spent decoding, per type */
+    private final long[] mDecodeNanosTotal = new long[MESSAGE_TYPES];
+    /** Total time spent in callbacks, per type */
+    private final long[] mCallbackNanosTotal = new long[MESSAGE_TYPES];
+    /** Total payload bytes received, per type */
+    private final long[] mPayloadBytesTotal = new long[MESSAGE_TYPES];
+    /** Largest payload received, per type */
+    private final long[] mPayloadBytesMax = new long[MESSAGE_TYPES];
+    /** Queue delay histograms (core sending to handling), MESSAGE_TYPES rows of LATENCY_BUCKETS each */
+    private final long[] mQueueDelayHistograms = new long[MESSAGE_TYPES * LATENCY_BUCKETS];
+    /** Event age histograms (event occurring to callback), MESSAGE_TYPES rows of LATENCY_BUCKETS each */
+    private final long[] mEventAgeHistograms = new long[MESSAGE_TYPES * LATENCY_BUCKETS];
+    /** Largest event age measured, per type */
+    private final long[] mEventAgeNanosMax = new long[MESSAGE_TYPES];
+    /** Number of events exceeding the latency SLO, per type */
+    private final long[] mSloViolations = new long[MESSAGE_TYPES];
+    /** Number of callbacks exceeding their time budget, per type */
+    private final long[] mCallbacksOverBudget = new long[MESSAGE_TYPES];
+    /** Number of messages deferred in low-power mode, per type */
+    private final long[] mMessagesDeferred = new long[MESSAGE_TYPES];
+    /** Number of messages dropped in low-power mode, per type */
+    private final long[] mMessagesDropped = new long[MESSAGE_TYPES];
+    /** Number of messages dropped because they concern an app not matching the package filter, per type */
+    private final long[] mMessagesFiltered = new long[MESSAGE_TYPES];
+
+    /** Number of view trees received */
+    private long mViewTrees;
+    /** Total number of nodes in all view trees received */
+    private long mViewTreeNodesTotal;
+    /** Number of nodes in the largest view tree received */
+    private int mViewTreeNodesMax;
+    /** Number of nodes in the last view tree received */
+    private int mViewTreeNodesLast;
+
+    /**
+     * Converts a MSG_* constant to its row index
+     * @param messageType    Exactly one of the MSG_* constants
+     */
+    static int indexOf(int messageType) {
+        if (Integer.bitCount(messageType) != 1 || messageType >= (1 << MESSAGE_TYPES))
+            throw new IllegalArgumentException("Not a single message type: " + messageType);
+        return Integer.numberOfTrailingZeros(messageType);
+    }
+
+    /** Returns the histogram bucket for the given duration */
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return bucket < LATENCY_BUCKETS ? bucket : LATENCY_BUCKETS - 1;
+    }
+
+    /** Records that a message of the given type has been received */
+    synchronized void recordMessage(int messageType, int payloadBytes) {
+        int index = indexOf(messageType);
+        ++mMessageCounts[index];
+        mPayloadBytesTotal[index] += payloadBytes;
+        if (payloadBytes > mPayloadBytesMax[index])
+            mPayloadBytesMax[index] = payloadBytes;
+    }
+
+    /** Records the time needed to decode a message of the given type */
+    synchronized void recordDecode(int messageType, long nanos) {
+        int index = indexOf(messageType);
+        ++mDecodeHistograms[index * LATENCY_BUCKETS + bucketOf(nanos)];
+        mDecodeNanosTotal[index] += nanos;
+    }
+
+    /** Records the time spent in the callback for a message of the given type */
+    synchronized void recordCallback(int messageType, long nanos) {
+        int index = indexOf(messageType);
+        ++mCallbackHistograms[index * LATENCY_BUCKETS + bucketOf(nanos)];
+        mCallbackNanosTotal[index] += nanos;
+    }
+
+    /** Records the time between the core sending a message of the given type and its handling */
+    synchronized void recordQueueDelay(int messageType, long nanos) {
+        ++mQueueDelayHistograms[indexOf(messageType) * LATENCY_BUCKETS + bucketOf(nanos)];
+    }
+
+    /** Records the time between an event occurring and its callback being called */
+    synchronized void recordEventAge(int messageType, long nanos, boolean sloViolated) {
+        int index = indexOf(messageType);
+        ++mEventAgeHistograms[index * LATENCY_BUCKETS + bucketOf(nanos)];
+        if (nanos > mEventAgeNanosMax[index])
+            mEventAgeNanosMax[index] = nanos;
+        if (sloViolated)
+            ++mSloViolations[index];
+    }
+
+    /** Records that a callback of the given type exceeded its time budget */
+    synchronized void recordCallbackOverBudget(int messageType) {
+        ++mCallbacksOverBudget[indexOf(messageType)];
+    }
+
+    /** Records that a message of the given type has been deferred in low-power mode */
+    synchronized void recordDeferred(int messageType) {
+        ++mMessagesDeferred[indexOf(messageType)];
+    }
+
+    /** Records that a message of the given type has been dropped in low-power mode */
+    synchronized void recordDropped(int messageType) {
+        ++mMessagesDropped[indexOf(messageType)];
+    }
+
+    /** Records that a message of the given type has been dropped by the package filter */
+    synchronized void recordFiltered(int messageType) {
+        ++mMessagesFiltered[indexOf(messageType)];
+    }
+
+    /** Records the size of a view tree received */
+    synchronized void recordViewTree(int nodeCount) {
+        ++mViewTrees;
+        mViewTreeNodesTotal += nodeCount;
+        mViewTreeNodesLast = nodeCount;
+        if (nodeCount > mViewTreeNodesMax)
+            mViewTreeNodesMax = nodeCount;
+    }
+
+    /** Resets all counters to zero */
+    public synchronized void reset() {
+        Arrays.fill(mMessageCounts, 0);
+        Arrays.fill(mDecodeHistograms, 0);
+        Arrays.fill(mCallbackHistograms, 0);
+        Arrays.fill(mDecodeNanosTotal, 0);
+        Arrays.fill(mCallbackNanosTotal, 0);
+        Arrays.fill(mPayloadBytesTotal, 0);
+        Arrays.fill(mPayloadBytesMax, 0);
+        Arrays.fill(mQueueDelayHistograms, 0);
+        Arrays.fill(mEventAgeHistograms, 0);
+        Arrays.fill(mEventAgeNanosMax, 0);
+        Arrays.fill(mSloViolations, 0);
+        Arrays.fill(mCallbacksOverBudget, 0);
+        Arrays.fill(mMessagesDeferred, 0);
+        Arrays.fill(mMessagesDropped, 0);
+        Arrays.fill(mMessagesFiltered, 0);
+        mViewTrees = 0;
+        mViewTreeNodesTotal = 0;
+        mViewTreeNodesMax = 0;
+        mViewTreeNodesLast = 0;
+    }
+
+    /** Returns a consistent copy of all values recorded so far */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Immutable copy of DispatchMetrics at a certain point in time. All methods
+     * taking a message type expect exactly one of the CoastDoveListenerService.MSG_*
+     * constants.
+     */
+    public static class Snapshot {
+        private final long mTimestamp;
+        private final long[] mMessageCounts;
+        private final long[] mDecodeHistograms;
+        private final long[] mCallbackHistograms;
+        private final long[] mDecodeNanosTotal;
+        private final long[] mCallbackNanosTotal;
+        private final long[] mPayloadBytesTotal;
+        private final long[] mPayloadBytesMax;
+        private final long[] mQueueDelayHistograms;
+        private final long[] mEventAgeHistograms;
+        private final long[] mEventAgeNanosMax;
+        private final long[] mSloViolations;
+        private final long[] mCallbacksOverBudget;
+        private final long[] mMessagesDeferred;
+        private final long[] mMessagesDropped;
+        private final long[] mMessagesFiltered;
+        private final long mViewTrees;
+        private final long mViewTreeNodesTotal;
+        private final int mViewTreeNodesMax;
+        private final int mViewTreeNodesLast;
+
+        private Snapshot(DispatchMetrics metrics) {
+            mTimestamp = System.currentTimeMillis();
+            mMessageCounts = metrics.mMessageCounts.clone();
+            mDecodeHistograms = metrics.mDecodeHistograms.clone();
+            mCallbackHistograms = metrics.mCallbackHistograms.clone();
+            mDecodeNanosTotal = metrics.mDecodeNanosTotal.clone();
+            mCallbackNanosTotal = metrics.mCallbackNanosTotal.clone();
+            mPayloadBytesTotal = metrics.mPayloadBytesTotal.clone();
+            mPayloadBytesMax = metrics.mPayloadBytesMax.clone();
+            mQueueDelayHistograms = metrics.mQueueDelayHistograms.clone();
+            mEventAgeHistograms = metrics.mEventAgeHistograms.clone();
+            mEventAgeNanosMax = metrics.mEventAgeNanosMax.clone();
+            mSloViolations = metrics.mSloViolations.clone();
+            mCallbacksOverBudget = metrics.mCallbacksOverBudget.clone();
+            mMessagesDeferred = metrics.mMessagesDeferred.clone();
+            mMessagesDropped = metrics.mMessagesDropped.clone();
+            mMessagesFiltered = metrics.mMessagesFiltered.clone();
+            mViewTrees = metrics.mViewTrees;
+            mViewTreeNodesTotal = metrics.mViewTreeNodesTotal;
+            mViewTreeNodesMax = metrics.mViewTreeNodesMax;
+            mViewTreeNodesLast = metrics.mViewTreeNodesLast;
+        }
+
+        /** Wall clock time (System.currentTimeMillis) at which this snapshot was taken */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /** Number of messages received of the given type */
+        public long getMessageCount(int messageType) {
+            return mMessageCounts[indexOf(messageType)];
+        }
+
+        /** Decode latency histogram of the given type (see LATENCY_BUCKETS for the bucket layout) */
+        public long[] getDecodeHistogram(int messageType) {
+            int from = indexOf(messageType) * LATENCY_BUCKETS;
+            return Arrays.copyOfRange(mDecodeHistograms, from, from + LATENCY_BUCKETS);
+        }
+
+        /** Callback latency histogram of the given type (see LATENCY_BUCKETS for the bucket layout) */
+        public long[] getCallbackHistogram(int messageType) {
+            int from = indexOf(messageType) * LATENCY_BUCKETS;
+            return Arrays.copyOfRange(mCallbackHistograms, from, from + LATENCY_BUCKETS);
+        }
+
+        /** Total time spent decoding messages of the given type, in nanoseconds */
+        public long getDecodeNanosTotal(int messageType) {
+            return mDecodeNanosTotal[indexOf(messageType)];
+        }
+
+        /** Total time spent in callbacks for messages of the given type, in nanoseconds */
+        public long getCallbackNanosTotal(int messageType) {
+            return mCallbackNanosTotal[indexOf(messageType)];
+        }
+
+        /**
+         * Upper bound of the decode latency percentile, in microseconds
+         * @param messageType    Message type
+         * @param percentile     Percentile from 0 to 1 (e.g., 0.99)
+         */
+        public long getDecodePercentileMicros(int messageType, double percentile) {
+            return percentileMicros(mDecodeHistograms, indexOf(messageType), percentile);
+        }
+
+        /**
+         * Upper bound of the callback latency percentile, in microseconds
+         * @param messageType    Message type
+         * @param percentile     Percentile from 0 to 1 (e.g., 0.99)
+         */
+        public long getCallbackPercentileMicros(int messageType, double percentile) {
+            return percentileMicros(mCallbackHistograms, indexOf(messageType), percentile);
+        }
+
+        /**
+         * Total size of all Bundles received of the given type, in bytes; only counted while
+         * CoastDoveListenerService.setPayloadMeasurementEnabled is on
+         */
+        public long getPayloadBytesTotal(int messageType) {
+            return mPayloadBytesTotal[indexOf(messageType)];
+        }
+
+        /** Size of the largest Bundle received of the given type, in bytes (see getPayloadBytesTotal) */
+        public long getPayloadBytesMax(int messageType) {
+            return mPayloadBytesMax[indexOf(messageType)];
+        }
+
+        /**
+         * Queue delay histogram of the given type, i.e., time from the core sending a message
+         * until it is handled (only messages carrying DATA_SEND_TIMESTAMP are counted)
+         */
+        public long[] getQueueDelayHistogram(int messageType) {
+            int from = indexOf(messageType) * LATENCY_BUCKETS;
+            return Arrays.copyOfRange(mQueueDelayHistograms, from, from + LATENCY_BUCKETS);
+        }
+
+        /**
+         * Event age histogram of the given type, i.e., time from the event occurring in the
+         * core until the callback is called (only messages carrying DATA_EVENT_TIMESTAMP are counted)
+         */
+        public long[] getEventAgeHistogram(int messageType) {
+            int from = indexOf(messageType) * LATENCY_BUCKETS;
+            return Arrays.copyOfRange(mEventAgeHistograms, from, from + LATENCY_BUCKETS);
+        }
+
+        /**
+         * Upper bound of the queue delay percentile, in microseconds
+         * @param messageType    Message type
+         * @param percentile     Percentile from 0 to 1 (e.g., 0.99)
+         */
+        public long getQueueDelayPercentileMicros(int messageType, double percentile) {
+            return percentileMicros(mQueueDelayHistograms, indexOf(messageType), percentile);
+        }
+
+        /**
+         * Upper bound of the event age percentile, in microseconds
+         * @param messageType    Message type
+         * @param percentile     Percentile from 0 to 1 (e.g., 0.99)
+         */
+        public long getEventAgePercentileMicros(int messageType, double percentile) {
+            return percentileMicros(mEventAgeHistograms, indexOf(messageType), percentile);
+        }
+
+        /** Largest event age measured for the given type, in nanoseconds */
+        public long getEventAgeNanosMax(int messageType) {
+            return mEventAgeNanosMax[indexOf(messageType)];
+        }
+
+        /** Number of events of the given type that exceeded the latency SLO */
+        public long getSloViolations(int messageType) {
+            return mSloViolations[indexOf(messageType)];
+        }
+
+        /** Number of callbacks of the given type that exceeded their time budget */
+        public long getCallbacksOverBudget(int messageType) {
+            return mCallbacksOverBudget[indexOf(messageType)];
+        }
+
+        /**
+         * Number of messages of the given type deferred in low-power mode. Only the latest
+         * deferred message per type is handled (and counted by getMessageCount) afterwards.
+         */
+        public long getMessagesDeferred(int messageType) {
+            return mMessagesDeferred[indexOf(messageType)];
+        }
+
+        /** Number of messages of the given type dropped in low-power mode without being decoded */
+        public long getMessagesDropped(int messageType) {
+            return mMessagesDropped[indexOf(messageType)];
+        }
+
+        /**
+         * Number of messages of the given type dropped without being decoded because they
+         * concern an app not matching the listener's associated app patterns
+         */
+        public long getMessagesFiltered(int messageType) {
+            return mMessagesFiltered[indexOf(messageType)];
+        }
+
+        /** Number of view trees received */
+        public long getViewTreeCount() {
+            return mViewTrees;
+        }
+
+        /** Total number of nodes in all view trees received */
+        public long getViewTreeNodesTotal() {
+            return mViewTreeNodesTotal;
+        }
+
+        /** Number of nodes in the largest view tree received */
+        public int getViewTreeNodesMax() {
+            return mViewTreeNodesMax;
+        }
+
+        /** Number of nodes in the last view tree received */
+        public int getViewTreeNodesLast() {
+            return mViewTreeNodesLast;
+        }
+
+        /**
+         * Returns the upper bound (in microseconds) of the bucket in which the given percentile lies,
+         * or 0 if no values have been recorded
+         */
+        private static long percentileMicros(long[] histograms, int index, double percentile) {
+            int from = index * LATENCY_BUCKETS;
+            long total = 0;
+            for (int i = 0; i < LATENCY_BUCKETS; ++i)
+                total += histograms[from + i];
+            if (total == 0)
+                return 0;
+
+            long threshold = (long)Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BUCKETS; ++i) {
+                seen += histograms[from + i];
+                if (seen >= threshold && seen > 0)
+                    return 1L << i;
+            }
+            return 1L << (LATENCY_BUCKETS - 1);
+        }
+    }
+}
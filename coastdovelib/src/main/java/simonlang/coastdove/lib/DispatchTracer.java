@@ -0,0 +1,197 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Emits systrace / Perfetto sections around message decoding and callbacks in
+ * CoastDoveListenerService, and asynchronous sections spanning the time messages are
+ * deferred in low-power mode. Section names are built once, so tracing does not
+ * allocate while dispatching.
+ */
+final class DispatchTracer {
+    /** Name of the counter track showing the node count of the last view tree */
+    static final String VIEW_TREE_NODES_COUNTER = "CoastDove lastViewTree nodes";
+
+    /** Readable names of the MSG_* types, indexed by bit position */
+    private static final String[] MESSAGE_TYPE_NAMES = {
+            "ReplyTo", "AppEnabled", "AppDisabled", "MetaInformation", "AppClosed",
+            "AppOpened", "ActivityDetected", "LayoutsDetected", "InteractionDetected",
+            "NotificationDetected", "ScreenStateDetected", "ViewTree", "ActionResult",
+            "ScrollPositionDetected"
+    };
+    private static final String[] DECODE_SECTIONS = new String[DispatchMetrics.MESSAGE_TYPES];
+    private static final String[] CALLBACK_SECTIONS = new String[DispatchMetrics.MESSAGE_TYPES];
+    private static final String[] DEFERRED_SECTIONS = new String[DispatchMetrics.MESSAGE_TYPES];
+    static {
+        for (int i = 0; i < DispatchMetrics.MESSAGE_TYPES; ++i) {
+            DECODE_SECTIONS[i] = "CoastDove decode " + MESSAGE_TYPE_NAMES[i];
+            CALLBACK_SECTIONS[i] = "CoastDove on" + MESSAGE_TYPE_NAMES[i];
+            DEFERRED_SECTIONS[i] = "CoastDove deferred " + MESSAGE_TYPE_NAMES[i];
+        }
+    }
+
+    /** Trace.TRACE_TAG_APP, hidden in the SDK */
+    private static final long TRACE_TAG_APP = 1L << 12;
+    /**
+     * Whether the async section and counter API is public (SDK level 29); it is hidden
+     * before, taking the trace tag as an additional first argument
+     */
+    private static final boolean PUBLIC_API = Build.VERSION.SDK_INT >= 29;
+    /** Trace.beginAsyncSection, or Trace.asyncTraceBegin before SDK level 29; null if unavailable */
+    private static Method sBeginAsyncSection;
+    /** Trace.endAsyncSection, or Trace.asyncTraceEnd before SDK level 29; null if unavailable */
+    private static Method sEndAsyncSection;
+    /** Trace.setCounter, or Trace.traceCounter before SDK level 29; null if unavailable */
+    private static Method sSetCounter;
+    private static boolean sResolved;
+
+    /** Whether sections are emitted */
+    private volatile boolean mEnabled;
+    /** Cookie of the last async section begun, so that concurrent sections can be told apart */
+    private int mLastCookie;
+
+    /** Enables or disables tracing, takes effect with the next message */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Readable name of the given MSG_* type */
+    static String messageTypeName(int messageType) {
+        return MESSAGE_TYPE_NAMES[DispatchMetrics.indexOf(messageType)];
+    }
+
+    void beginDecode(int messageType) {
+        Trace.beginSection(DECODE_SECTIONS[DispatchMetrics.indexOf(messageType)]);
+    }
+
+    void beginCallback(int messageType) {
+        Trace.beginSection(CALLBACK_SECTIONS[DispatchMetrics.indexOf(messageType)]);
+    }
+
+    void endSection() {
+        Trace.endSection();
+    }
+
+    /**
+     * Begins an async section for a message of the given type being deferred
+     * @return Cookie to pass to endDeferred, never 0
+     */
+    int beginDeferred(int messageType) {
+        int cookie = ++mLastCookie;
+        if (cookie == 0)
+            cookie = ++mLastCookie;
+        Method beginAsyncSection = resolve() ? sBeginAsyncSection : null;
+        if (beginAsyncSection != null) {
+            String name = DEFERRED_SECTIONS[DispatchMetrics.indexOf(messageType)];
+            if (PUBLIC_API)
+                invoke(beginAsyncSection, name, cookie);
+            else
+                invoke(beginAsyncSection, TRACE_TAG_APP, name, cookie);
+        }
+        return cookie;
+    }
+
+    /**
+     * Ends the async section begun by beginDeferred, when the message is handled or discarded
+     * @param cookie    Cookie returned by beginDeferred, nothing is ended if 0
+     */
+    void endDeferred(int messageType, int cookie) {
+        Method endAsyncSection = cookie != 0 && resolve() ? sEndAsyncSection : null;
+        if (endAsyncSection != null) {
+            String name = DEFERRED_SECTIONS[DispatchMetrics.indexOf(messageType)];
+            if (PUBLIC_API)
+                invoke(endAsyncSection, name, cookie);
+            else
+                invoke(endAsyncSection, TRACE_TAG_APP, name, cookie);
+        }
+    }
+
+    /**
+     * Sets the counter track for the node count of the last view tree. The counter API
+     * is hidden before SDK level 29, so it is then called via reflection and silently
+     * skipped if not available.
+     */
+    void setViewTreeNodeCount(int nodeCount) {
+        Method setCounter = resolve() ? sSetCounter : null;
+        if (setCounter == null)
+            return;
+        if (PUBLIC_API)
+            invoke(setCounter, VIEW_TREE_NODES_COUNTER, (long)nodeCount);
+        else
+            invoke(setCounter, TRACE_TAG_APP, VIEW_TREE_NODES_COUNTER, nodeCount);
+    }
+
+    /**
+     * Looks up the async section and counter methods of android.os.Trace. They are looked
+     * up via reflection on all SDK levels, since the library compiles against an SDK level
+     * before 29.
+     * @return Whether any of them is available
+     */
+    private static synchronized boolean resolve() {
+        if (!sResolved) {
+            sResolved = true;
+            if (PUBLIC_API) {
+                sBeginAsyncSection = method("beginAsyncSection", String.class, int.class);
+                sEndAsyncSection = method("endAsyncSection", String.class, int.class);
+                sSetCounter = method("setCounter", String.class, long.class);
+            }
+            else {
+                sBeginAsyncSection = method("asyncTraceBegin", long.class, String.class, int.class);
+                sEndAsyncSection = method("asyncTraceEnd", long.class, String.class, int.class);
+                sSetCounter = method("traceCounter", long.class, String.class, int.class);
+            }
+        }
+        return sBeginAsyncSection != null || sSetCounter != null;
+    }
+
+    private static Method method(String name, Class<?>... parameterTypes) {
+        try {
+            return Trace.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            Log.w("DispatchTracer", "Trace." + name + " not available");
+            return null;
+        }
+    }
+
+    private static void invoke(Method method, Object... args) {
+        try {
+            method.invoke(null, args);
+        } catch (Exception e) {
+            Log.w("DispatchTracer", "Unable to call Trace." + method.getName() + ": " + e.getMessage());
+            synchronized (DispatchTracer.class) {
+                if (method.equals(sBeginAsyncSection) || method.equals(sEndAsyncSection)) {
+                    sBeginAsyncSection = null;
+                    sEndAsyncSection = null;
+                }
+                else
+                    sSetCounter = null;
+            }
+        }
+    }
+}
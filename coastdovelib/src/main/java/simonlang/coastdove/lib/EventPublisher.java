@@ -0,0 +1,181 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Source of an EventStream, delivering each event published to all subscribers. Events
+ * arrive regardless of demand, so each subscriber has a bounded buffer; if it is full,
+ * the oldest event is dropped.
+ */
+final class EventPublisher<T> extends EventStream<T> {
+    /** Default number of events buffered per subscriber */
+    static final int DEFAULT_BUFFER_SIZE = 16;
+
+    /** Subscriptions of all subscribers */
+    private final CopyOnWriteArrayList<PublisherSubscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    /** Number of events buffered per subscriber */
+    private final int mBufferSize;
+    /** Stands in for null events in the buffers, as ArrayDeque does not take null */
+    private static final Object NULL = new Object();
+    /** Whether complete has been called */
+    private volatile boolean mCompleted;
+
+    EventPublisher() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    EventPublisher(int bufferSize) {
+        mBufferSize = bufferSize;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        PublisherSubscription subscription = new PublisherSubscription(subscriber);
+        mSubscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        if (mCompleted)
+            subscription.complete();
+    }
+
+    /** Indicates whether there are any subscribers, i.e., whether events need to be published */
+    boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    /** Delivers the event to all subscribers (or buffers it until requested) */
+    void publish(T event) {
+        for (PublisherSubscription subscription : mSubscriptions)
+            subscription.offer(event);
+    }
+
+    /** Completes all subscriptions, delivering buffered events first if requested */
+    void complete() {
+        mCompleted = true;
+        for (PublisherSubscription subscription : mSubscriptions)
+            subscription.complete();
+    }
+
+    /**
+     * Subscription of one subscriber, buffering events until they are requested
+     */
+    private final class PublisherSubscription implements Subscription {
+        private final Subscriber<? super T> mSubscriber;
+        /** Events not delivered yet, null events being replaced by NULL */
+        private final ArrayDeque<Object> mBuffer = new ArrayDeque<>();
+        /** Events requested and not delivered yet */
+        private long mRequested;
+        private boolean mCancelled;
+        private boolean mCompleted;
+        /** Whether events are being delivered (by any thread) */
+        private boolean mDraining;
+
+        PublisherSubscription(Subscriber<? super T> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        void offer(T event) {
+            synchronized (this) {
+                if (mCancelled || mCompleted)
+                    return;
+                if (mBuffer.size() == mBufferSize)
+                    mBuffer.pollFirst();
+                mBuffer.addLast(event == null ? NULL : event);
+            }
+            drain();
+        }
+
+        void complete() {
+            synchronized (this) {
+                mCompleted = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0)
+                throw new IllegalArgumentException("Number of events requested must be positive");
+            synchronized (this) {
+                mRequested = mRequested + n < 0 ? Long.MAX_VALUE : mRequested + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+                mBuffer.clear();
+            }
+            mSubscriptions.remove(this);
+        }
+
+        /**
+         * Delivers buffered events as long as there is demand. Only one thread delivers at
+         * a time; events offered meanwhile are delivered by that thread. Events are taken out
+         * of the buffer under the lock and delivered outside of it.
+         */
+        private void drain() {
+            synchronized (this) {
+                if (mDraining)
+                    return;
+                mDraining = true;
+            }
+            while (true) {
+                T event = null;
+                boolean complete = false;
+                synchronized (this) {
+                    if (mCancelled) {
+                        mDraining = false;
+                        return;
+                    }
+                    if (mBuffer.isEmpty() && mCompleted) {
+                        mCancelled = true;
+                        mDraining = false;
+                        complete = true;
+                    }
+                    else if (mBuffer.isEmpty() || mRequested == 0) {
+                        mDraining = false;
+                        return;
+                    }
+                    else {
+                        event = unwrap(mBuffer.pollFirst());
+                        if (mRequested != Long.MAX_VALUE)
+                            --mRequested;
+                    }
+                }
+                if (complete) {
+                    mSubscriptions.remove(this);
+                    mSubscriber.onComplete();
+                    return;
+                }
+                mSubscriber.onNext(event);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private T unwrap(Object event) {
+            return event == NULL ? null : (T)event;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stream of events, e.g., activities detected by a listener, to which any number of
+ * subscribers can subscribe. Subscribers signal how many events they are ready to
+ * receive using Subscription.request. Operators such as filter or map return new
+ * streams based on this one.
+ */
+public abstract class EventStream<T> {
+    /**
+     * Receives events of a stream
+     */
+    public interface Subscriber<T> {
+        /**
+         * Called once when subscribing, before any other method. No events are delivered
+         * until subscription.request is called.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /** Called for each event, at most as many times as requested */
+        void onNext(T event);
+
+        /** Called when no more events will be delivered, e.g., when the service is unbound */
+        void onComplete();
+    }
+
+    /**
+     * Connection between a stream and a subscriber
+     */
+    public interface Subscription {
+        /**
+         * Requests the given number of events (Long.MAX_VALUE for unlimited events)
+         * @param n    Number of events, must be positive
+         */
+        void request(long n);
+
+        /** Stops delivering events */
+        void cancel();
+    }
+
+    /** Tests events */
+    public interface Predicate<T> {
+        boolean test(T event);
+    }
+
+    /** Transforms events */
+    public interface Function<T, R> {
+        R apply(T event);
+    }
+
+    /**
+     * Subscribes to this stream
+     * @param subscriber    Subscriber to receive the events
+     */
+    public abstract void subscribe(Subscriber<? super T> subscriber);
+
+    /** Returns a stream of the events passing the given predicate */
+    public final EventStream<T> filter(final Predicate<? super T> predicate) {
+        final EventStream<T> upstream = this;
+        return new EventStream<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                upstream.subscribe(new Operator<T, T>(subscriber) {
+                    @Override
+                    public void onNext(T event) {
+                        if (predicate.test(event))
+                            mDownstream.onNext(event);
+                        else
+                            mUpstream.request(1);
+                    }
+                });
+            }
+        };
+    }
+
+    /** Returns a stream of the events transformed by the given function */
+    public final <R> EventStream<R> map(final Function<? super T, ? extends R> function) {
+        final EventStream<T> upstream = this;
+        return new EventStream<R>() {
+            @Override
+            public void subscribe(Subscriber<? super R> subscriber) {
+                upstream.subscribe(new Operator<T, R>(subscriber) {
+                    @Override
+                    public void onNext(T event) {
+                        mDownstream.onNext(function.apply(event));
+                    }
+                });
+            }
+        };
+    }
+
+    /** Returns a stream of the events that are not equal to their predecessor */
+    public final EventStream<T> distinctUntilChanged() {
+        final EventStream<T> upstream = this;
+        return new EventStream<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                upstream.subscribe(new Operator<T, T>(subscriber) {
+                    private boolean mHasLast = false;
+                    private T mLast;
+
+                    @Override
+                    public void onNext(T event) {
+                        boolean changed = !mHasLast || (mLast == null ? event != null : !mLast.equals(event));
+                        mHasLast = true;
+                        mLast = event;
+                        if (changed)
+                            mDownstream.onNext(event);
+                        else
+                            mUpstream.request(1);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Returns a stream of lists of the given number of consecutive events. When this stream
+     * completes, the remaining events are delivered as a shorter list once requested.
+     * @param count    Number of events per list
+     */
+    public final EventStream<List<T>> window(final int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("Count must be positive");
+        final EventStream<T> upstream = this;
+        return new EventStream<List<T>>() {
+            @Override
+            public void subscribe(Subscriber<? super List<T>> subscriber) {
+                upstream.subscribe(new Window<>(subscriber, count));
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that delivers an event only after no other event has followed it
+     * for the given time, i.e., the last event of each burst. Timing happens on the main
+     * thread. Events for which the subscriber has no demand are dropped.
+     * @param millis    Quiet time after an event, in milliseconds
+     */
+    public final EventStream<T> debounce(final long millis) {
+        final EventStream<T> upstream = this;
+        return new EventStream<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                upstream.subscribe(new Debounce<>(subscriber, millis));
+            }
+        };
+    }
+
+    /**
+     * Subscriber to a stream that passes events on to a downstream subscriber, passing
+     * demand and cancellation upstream
+     */
+    private static abstract class Operator<T, R> implements Subscriber<T>, Subscription {
+        protected final Subscriber<? super R> mDownstream;
+        protected Subscription mUpstream;
+
+        Operator(Subscriber<? super R> downstream) {
+            mDownstream = downstream;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            mUpstream = subscription;
+            mDownstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onComplete() {
+            mDownstream.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            mUpstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            mUpstream.cancel();
+        }
+    }
+
+    /**
+     * Operator for window. Requests the given number of events upstream per list requested;
+     * if this stream completes without demand, the shorter list is held until requested.
+     */
+    private static final class Window<T> extends Operator<T, List<T>> {
+        private final int mCount;
+        private List<T> mWindow;
+        /** Lists requested downstream and not delivered yet */
+        private long mRequested;
+        /** Whether upstream has completed while there was no demand for the remaining list */
+        private boolean mCompletionPending;
+
+        Window(Subscriber<? super List<T>> downstream, int count) {
+            super(downstream);
+            mCount = count;
+            mWindow = new ArrayList<>(count);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0)
+                throw new IllegalArgumentException("Number of events requested must be positive");
+            boolean complete;
+            synchronized (this) {
+                mRequested = mRequested + n < 0 ? Long.MAX_VALUE : mRequested + n;
+                complete = mCompletionPending;
+                mCompletionPending = false;
+            }
+            if (complete)
+                completeWithTail();
+            else
+                super.request(n >= Long.MAX_VALUE / mCount ? Long.MAX_VALUE : n * mCount);
+        }
+
+        @Override
+        public void onNext(T event) {
+            List<T> window = null;
+            synchronized (this) {
+                mWindow.add(event);
+                if (mWindow.size() == mCount) {
+                    window = mWindow;
+                    mWindow = new ArrayList<>(mCount);
+                    if (mRequested != Long.MAX_VALUE)
+                        --mRequested;
+                }
+            }
+            if (window != null)
+                mDownstream.onNext(window);
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                if (!mWindow.isEmpty() && mRequested == 0) {
+                    mCompletionPending = true;
+                    return;
+                }
+            }
+            completeWithTail();
+        }
+
+        /** Delivers the remaining events, if any, and completes */
+        private void completeWithTail() {
+            List<T> window;
+            synchronized (this) {
+                window = mWindow;
+                mWindow = new ArrayList<>(0);
+                if (!window.isEmpty() && mRequested != Long.MAX_VALUE)
+                    --mRequested;
+            }
+            if (!window.isEmpty())
+                mDownstream.onNext(window);
+            mDownstream.onComplete();
+        }
+    }
+
+    /**
+     * Operator for debounce. Requests all events upstream and keeps the latest until
+     * the quiet time has passed.
+     */
+    private static final class Debounce<T> extends Operator<T, T> {
+        private final long mMillis;
+        private final Handler mHandler;
+        /** Events requested downstream and not delivered yet */
+        private long mRequested;
+        /** Latest event not delivered yet */
+        private T mLatest;
+        private boolean mHasLatest;
+        private boolean mCompleted;
+        private final Runnable mEmit = new Runnable() {
+            @Override
+            public void run() {
+                emit();
+            }
+        };
+
+        Debounce(Subscriber<? super T> downstream, long millis) {
+            super(downstream);
+            mMillis = millis;
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            super.onSubscribe(subscription);
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(T event) {
+            synchronized (this) {
+                mLatest = event;
+                mHasLatest = true;
+            }
+            mHandler.removeCallbacks(mEmit);
+            mHandler.postDelayed(mEmit, mMillis);
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                mCompleted = true;
+            }
+            mHandler.removeCallbacks(mEmit);
+            mHandler.post(mEmit);
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            if (n <= 0)
+                throw new IllegalArgumentException("Number of events requested must be positive");
+            mRequested = mRequested + n < 0 ? Long.MAX_VALUE : mRequested + n;
+        }
+
+        @Override
+        public void cancel() {
+            mHandler.removeCallbacks(mEmit);
+            super.cancel();
+        }
+
+        private void emit() {
+            T event = null;
+            boolean deliver;
+            boolean complete;
+            synchronized (this) {
+                deliver = mHasLatest && mRequested > 0;
+                if (deliver) {
+                    event = mLatest;
+                    if (mRequested != Long.MAX_VALUE)
+                        --mRequested;
+                }
+                mLatest = null;
+                mHasLatest = false;
+                complete = mCompleted;
+            }
+            if (deliver)
+                mDownstream.onNext(event);
+            if (complete)
+                mDownstream.onComplete();
+        }
+    }
+}
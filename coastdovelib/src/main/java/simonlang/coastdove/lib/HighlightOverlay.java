@@ -0,0 +1,280 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.view.Gravity;
+import android.view.View;
+import android.view.WindowManager;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A single full-screen, non-touchable overlay that highlights any number of rectangles
+ * (e.g., the bounds of view tree nodes), optionally labelled. Uses one window for all
+ * highlights instead of one Overlay per highlight, and only redraws the regions that
+ * changed. Must be used on the main thread.
+ */
+public class HighlightOverlay {
+    /** Default color of the rectangles */
+    public static final int DEFAULT_COLOR = Color.argb(0xFF, 0xFF, 0x40, 0x40);
+    /** Default color of the labels */
+    public static final int DEFAULT_LABEL_COLOR = Color.WHITE;
+
+    /** Overlay showing mView */
+    private Overlay mOverlay;
+    /** View drawing all highlights */
+    private HighlightView mView;
+
+    /**
+     * Creates a highlight overlay, which is not shown until show is called
+     * @param context    App context
+     */
+    public HighlightOverlay(@NonNull Context context) {
+        mView = new HighlightView(context);
+        WindowManager.LayoutParams params = new WindowManager.LayoutParams(
+                WindowManager.LayoutParams.MATCH_PARENT,
+                WindowManager.LayoutParams.MATCH_PARENT,
+                WindowManager.LayoutParams.TYPE_PHONE,
+                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
+                        | WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE // touches go to the app below
+                        | WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN, // screen coordinates
+                PixelFormat.TRANSLUCENT
+        );
+        params.gravity = Gravity.TOP | Gravity.LEFT;
+        mOverlay = new Overlay(context, mView, params);
+    }
+
+    /** Shows the highlights, adding the overlay to the window manager if necessary */
+    public void show() {
+        mOverlay.show();
+    }
+
+    /** Hides the highlights */
+    public void hide() {
+        mOverlay.hide();
+    }
+
+    /** Removes the overlay from the window manager */
+    public void remove() {
+        mOverlay.remove();
+    }
+
+    /** Overlay used to show the highlights */
+    public Overlay getOverlay() {
+        return mOverlay;
+    }
+
+    /**
+     * Replaces all highlights with the given rectangles, without labels
+     * @param rects    Rectangles in screen coordinates
+     */
+    public void setHighlights(@NonNull List<Rect> rects) {
+        setHighlights(rects, null);
+    }
+
+    /**
+     * Replaces all highlights with the given rectangles
+     * @param rects     Rectangles in screen coordinates
+     * @param labels    Label of each rectangle (null elements for no label), or null for no labels;
+     *                  rectangles beyond the end of the list have no label, labels beyond
+     *                  the number of rectangles are ignored
+     */
+    public void setHighlights(@NonNull List<Rect> rects, List<String> labels) {
+        int count = rects.size();
+        int[] bounds = new int[count * 4];
+        String[] newLabels = new String[count];
+        for (int i = 0; i < count; ++i) {
+            Rect rect = rects.get(i);
+            bounds[i * 4] = rect.left;
+            bounds[i * 4 + 1] = rect.top;
+            bounds[i * 4 + 2] = rect.right;
+            bounds[i * 4 + 3] = rect.bottom;
+            if (labels != null && i < labels.size())
+                newLabels[i] = labels.get(i);
+        }
+        mView.setHighlights(count, bounds, newLabels);
+    }
+
+    /**
+     * Replaces all highlights with the bounds of the given nodes. Nodes not visible to
+     * the user are skipped.
+     * @param nodes                 Nodes to highlight
+     * @param labelWithResourceID   Whether to label each node with its resource ID
+     */
+    public void setNodes(@NonNull Collection<ViewTreeNode> nodes, boolean labelWithResourceID) {
+        int[] bounds = new int[nodes.size() * 4];
+        String[] labels = new String[nodes.size()];
+        Rect rect = new Rect();
+        int count = 0;
+        for (ViewTreeNode node : nodes) {
+            if (!node.isVisibleToUser())
+                continue;
+            node.getBoundsInScreen(rect);
+            bounds[count * 4] = rect.left;
+            bounds[count * 4 + 1] = rect.top;
+            bounds[count * 4 + 2] = rect.right;
+            bounds[count * 4 + 3] = rect.bottom;
+            if (labelWithResourceID)
+                labels[count] = node.getViewIDResourceName();
+            ++count;
+        }
+        mView.setHighlights(count, bounds, labels);
+    }
+
+    /** Removes all highlights */
+    public void clear() {
+        mView.setHighlights(0, new int[0], new String[0]);
+    }
+
+    /** Sets the color of the rectangles */
+    public void setColor(int color) {
+        mView.mRectPaint.setColor(color);
+        mView.invalidate();
+    }
+
+    /** Sets the color of the labels */
+    public void setLabelColor(int color) {
+        mView.mLabelPaint.setColor(color);
+        mView.invalidate();
+    }
+
+    /** Sets the stroke width of the rectangles, in pixels */
+    public void setStrokeWidth(float width) {
+        mView.mStrokeWidth = width;
+        mView.mRectPaint.setStrokeWidth(width);
+        mView.invalidate();
+    }
+
+    /** Sets the text size of the labels, in pixels */
+    public void setTextSize(float size) {
+        mView.mLabelPaint.setTextSize(size);
+        mView.invalidate();
+    }
+
+    /**
+     * Draws all highlights
+     */
+    private static final class HighlightView extends View {
+        /** Paint for the rectangles */
+        private final Paint mRectPaint;
+        /** Paint for the labels */
+        private final Paint mLabelPaint;
+        /** Stroke width of the rectangles */
+        private float mStrokeWidth;
+        /** Number of highlights */
+        private int mCount;
+        /** Left, top, right, bottom of each highlight */
+        private int[] mBounds;
+        /** Label of each highlight, or null */
+        private String[] mLabels;
+        /** Region to redraw after an update */
+        private final Rect mDirty;
+
+        HighlightView(Context context) {
+            super(context);
+            mStrokeWidth = 4f;
+            mRectPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            mRectPaint.setStyle(Paint.Style.STROKE);
+            mRectPaint.setStrokeWidth(mStrokeWidth);
+            mRectPaint.setColor(DEFAULT_COLOR);
+            mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            mLabelPaint.setColor(DEFAULT_LABEL_COLOR);
+            mLabelPaint.setTextSize(32f);
+            mCount = 0;
+            mBounds = new int[0];
+            mLabels = new String[0];
+            mDirty = new Rect();
+        }
+
+        /**
+         * Replaces all highlights and invalidates the regions of those that changed
+         * (the arrays are not copied)
+         */
+        void setHighlights(int count, int[] bounds, String[] labels) {
+            mDirty.setEmpty();
+            int max = Math.max(count, mCount);
+            for (int i = 0; i < max; ++i) {
+                if (i < count && i < mCount && sameHighlight(bounds, labels, i))
+                    continue;
+                if (i < mCount)
+                    addExtent(mBounds, mLabels, i);
+                if (i < count)
+                    addExtent(bounds, labels, i);
+            }
+            mCount = count;
+            mBounds = bounds;
+            mLabels = labels;
+            if (!mDirty.isEmpty())
+                invalidate(mDirty);
+        }
+
+        /** Whether the current highlight at the given index equals the new one */
+        private boolean sameHighlight(int[] bounds, String[] labels, int index) {
+            for (int j = index * 4; j < index * 4 + 4; ++j) {
+                if (bounds[j] != mBounds[j])
+                    return false;
+            }
+            String label = labels[index];
+            return label == null ? mLabels[index] == null : label.equals(mLabels[index]);
+        }
+
+        /** Adds the region drawn for the given highlight to mDirty */
+        private void addExtent(int[] bounds, String[] labels, int index) {
+            int inset = (int)Math.ceil(mStrokeWidth / 2) + 1;
+            int left = bounds[index * 4] - inset;
+            int top = bounds[index * 4 + 1] - inset;
+            int right = bounds[index * 4 + 2] + inset;
+            int bottom = bounds[index * 4 + 3] + inset;
+            String label = labels[index];
+            if (label != null) {
+                float baseline = labelBaseline(bounds[index * 4 + 1]);
+                top = Math.min(top, (int)Math.floor(baseline + mLabelPaint.ascent()));
+                bottom = Math.max(bottom, (int)Math.ceil(baseline + mLabelPaint.descent()));
+                right = Math.max(right, left + inset + (int)Math.ceil(mLabelPaint.measureText(label)));
+            }
+            mDirty.union(left, top, right, bottom);
+        }
+
+        /** Baseline of a label: above the rectangle, or inside it if there is no room above */
+        private float labelBaseline(int top) {
+            float above = top - mStrokeWidth - mLabelPaint.descent();
+            return above + mLabelPaint.ascent() >= 0 ? above : top + mStrokeWidth - mLabelPaint.ascent();
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas) {
+            for (int i = 0; i < mCount; ++i) {
+                int left = mBounds[i * 4];
+                int top = mBounds[i * 4 + 1];
+                canvas.drawRect(left, top, mBounds[i * 4 + 2], mBounds[i * 4 + 3], mRectPaint);
+                if (mLabels[i] != null)
+                    canvas.drawText(mLabels[i], left, labelBaseline(top), mLabelPaint);
+            }
+        }
+    }
+}
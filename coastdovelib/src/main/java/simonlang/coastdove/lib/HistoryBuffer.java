@@ -0,0 +1,187 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-capacity ring buffer of timestamped values, oldest values being overwritten first.
+ * Timestamps are kept in a primitive array, so appending does not allocate.
+ * Timestamps are SystemClock.elapsedRealtimeNanos values; a timestamp older than the most
+ * recent one is raised to it, so that entries are always ordered by time.
+ * While paused, the most recent value does not accrue dwell time (see getDwellTimes).
+ */
+public class HistoryBuffer<T> {
+    /** Timestamp of each entry */
+    private final long[] mTimestamps;
+    /** Value of each entry */
+    private final Object[] mValues;
+    /** Dwell time of each entry accrued until it was replaced or paused */
+    private final long[] mDwellTimes;
+    /** Time since which the most recent value accrues dwell time, -1 while paused */
+    private long mCurrentSince = 0L;
+    /** Time of the latest entry, pause or resume */
+    private long mLastTimestamp = Long.MIN_VALUE;
+    /** Index of the next entry to write */
+    private int mHead;
+    /** Number of entries */
+    private int mSize;
+
+    /**
+     * Creates an empty buffer
+     * @param capacity    Maximum number of entries kept
+     */
+    public HistoryBuffer(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        mTimestamps = new long[capacity];
+        mValues = new Object[capacity];
+        mDwellTimes = new long[capacity];
+    }
+
+    /** Appends a value, overwriting the oldest one if the buffer is full */
+    synchronized void add(long timestamp, T value) {
+        timestamp = monotonic(timestamp);
+        accrue(timestamp);
+        mTimestamps[mHead] = timestamp;
+        mValues[mHead] = value;
+        mDwellTimes[mHead] = 0L;
+        mHead = (mHead + 1) % mValues.length;
+        if (mSize < mValues.length)
+            ++mSize;
+        if (mCurrentSince >= 0L)
+            mCurrentSince = timestamp;
+    }
+
+    /** Stops the most recent value, and values added later, from accruing dwell time */
+    synchronized void pause(long timestamp) {
+        if (mCurrentSince < 0L)
+            return;
+        accrue(monotonic(timestamp));
+        mCurrentSince = -1L;
+    }
+
+    /** Lets the most recent value accrue dwell time again after pause */
+    synchronized void resume(long timestamp) {
+        if (mCurrentSince < 0L)
+            mCurrentSince = monotonic(timestamp);
+    }
+
+    /** Removes all entries */
+    synchronized void clear() {
+        for (int i = 0; i < mValues.length; ++i)
+            mValues[i] = null;
+        mHead = 0;
+        mSize = 0;
+        if (mCurrentSince >= 0L)
+            mCurrentSince = 0L;
+    }
+
+    /** Number of entries */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /** Maximum number of entries */
+    public int capacity() {
+        return mValues.length;
+    }
+
+    /** Returns the value of the given entry, 0 being the most recent one */
+    @SuppressWarnings("unchecked")
+    public synchronized T get(int index) {
+        return (T)mValues[slot(index)];
+    }
+
+    /** Returns the timestamp of the given entry, 0 being the most recent one */
+    public synchronized long getTimestamp(int index) {
+        return mTimestamps[slot(index)];
+    }
+
+    /** Returns the most recent value, or null if there is none */
+    public synchronized T getLatest() {
+        return mSize == 0 ? null : get(0);
+    }
+
+    /**
+     * Returns all values added at or after the given time, most recent first
+     * @param timestamp    SystemClock.elapsedRealtimeNanos
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<T> getSince(long timestamp) {
+        List<T> result = new ArrayList<>();
+        for (int i = 0; i < mSize; ++i) {
+            int slot = slot(i);
+            if (mTimestamps[slot] < timestamp)
+                break;
+            result.add((T)mValues[slot]);
+        }
+        return result;
+    }
+
+    /**
+     * Sums up how long each value was current within the buffer, i.e., from its timestamp
+     * until the timestamp of the next entry, or until now for the most recent entry,
+     * leaving out the time the buffer was paused
+     * @param now    Current SystemClock.elapsedRealtimeNanos
+     * @return Total nanoseconds per value
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Map<T, Long> getDwellTimes(long now) {
+        Map<T, Long> result = new HashMap<>();
+        for (int i = 0; i < mSize; ++i) {
+            int slot = slot(i);
+            T value = (T)mValues[slot];
+            long dwell = mDwellTimes[slot];
+            if (i == 0 && mCurrentSince >= 0L && now > mCurrentSince)
+                dwell += now - mCurrentSince;
+            Long total = result.get(value);
+            result.put(value, total == null ? dwell : total + dwell);
+        }
+        return result;
+    }
+
+    /** Adds the time since mCurrentSince to the most recent entry, if it accrues dwell time */
+    private void accrue(long timestamp) {
+        if (mSize > 0 && mCurrentSince >= 0L) {
+            int slot = slot(0);
+            mDwellTimes[slot] += timestamp - Math.max(mCurrentSince, mTimestamps[slot]);
+        }
+    }
+
+    /** Returns the given timestamp, raised to the latest one seen if it is older */
+    private long monotonic(long timestamp) {
+        if (timestamp < mLastTimestamp)
+            timestamp = mLastTimestamp;
+        mLastTimestamp = timestamp;
+        return timestamp;
+    }
+
+    /** Array index of the given entry, 0 being the most recent one */
+    private int slot(int index) {
+        if (index < 0 || index >= mSize)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+        int slot = mHead - 1 - index;
+        return slot < 0 ? slot + mValues.length : slot;
+    }
+}
@@ -0,0 +1,245 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * Immutable set of layouts (or other strings), backed by a sorted array. Membership is
+ * answered by binary search; larger sets also keep a Bloom filter, which answers most
+ * negative lookups without searching. The elements are ordered by String.compareTo, which
+ * is cheap but not locale-aware; use toCollatedSet if the set is to be shown to the user.
+ */
+public class LayoutSet extends AbstractSet<String> {
+    /** The empty set */
+    public static final LayoutSet EMPTY = new LayoutSet(new String[0]);
+
+    /** Minimum size of sets with a Bloom filter, smaller sets are searched quickly enough */
+    static final int MIN_FILTERED_SIZE = 16;
+
+    /** Sorted elements without duplicates or nulls */
+    private final String[] mLayouts;
+    /** Summary of the elements, or null for small sets */
+    private final BloomFilter mFilter;
+
+    /**
+     * Creates a set from a sorted array without duplicates, which is not copied
+     */
+    private LayoutSet(String[] sortedLayouts) {
+        this(sortedLayouts, null);
+    }
+
+    /**
+     * Creates a set from a sorted array without duplicates, which is not copied
+     * @param filter    Bloom filter of the elements, built here if null and needed
+     */
+    private LayoutSet(String[] sortedLayouts, BloomFilter filter) {
+        mLayouts = sortedLayouts;
+        if (filter == null && sortedLayouts.length >= MIN_FILTERED_SIZE) {
+            filter = new BloomFilter(sortedLayouts.length);
+            for (String layout : sortedLayouts)
+                filter.add(layout);
+        }
+        mFilter = sortedLayouts.length >= MIN_FILTERED_SIZE ? filter : null;
+    }
+
+    /**
+     * Creates a set containing the given layouts
+     * @param layouts    Layouts to add (null elements are ignored)
+     */
+    public LayoutSet(Collection<String> layouts) {
+        this(sortedUnique(layouts.toArray(new String[layouts.size()])));
+    }
+
+    /**
+     * Creates a set containing the given layouts. The array is copied.
+     * @param layouts    Layouts to add (null elements are ignored)
+     */
+    public static LayoutSet of(String... layouts) {
+        return wrap(layouts.clone());
+    }
+
+    /**
+     * Creates a set using the given array as storage, sorting it in place. The caller
+     * must not use the array afterwards. Used when decoding data from Coast Dove core.
+     * @param layouts    Layouts to add (null elements are ignored), may be null
+     */
+    static LayoutSet wrap(String[] layouts) {
+        return wrap(layouts, null);
+    }
+
+    /**
+     * Like wrap(layouts), using the given Bloom filter bits (see filterBits) sent by
+     * Coast Dove core along with the layouts instead of building the filter
+     * @param filterBits    Bloom filter of the layouts, may be null
+     */
+    static LayoutSet wrap(String[] layouts, long[] filterBits) {
+        if (layouts == null || layouts.length == 0)
+            return EMPTY;
+        return new LayoutSet(sortedUnique(layouts), BloomFilter.wrap(filterBits));
+    }
+
+    /**
+     * Returns the bits of a Bloom filter of the given layouts, to be sent to listeners
+     * along with them, or null if the set is too small to need one
+     */
+    static long[] filterBits(String[] layouts) {
+        if (layouts == null || layouts.length < MIN_FILTERED_SIZE)
+            return null;
+        BloomFilter filter = new BloomFilter(layouts.length);
+        for (String layout : layouts) {
+            if (layout != null)
+                filter.add(layout);
+        }
+        return filter.toLongArray();
+    }
+
+    /**
+     * Sorts the given array in place and removes duplicates and nulls
+     * @return The given array if nothing was removed, otherwise a shorter copy
+     */
+    private static String[] sortedUnique(String[] layouts) {
+        int count = 0;
+        for (int i = 0; i < layouts.length; ++i) {
+            if (layouts[i] != null)
+                layouts[count++] = layouts[i];
+        }
+        Arrays.sort(layouts, 0, count);
+
+        int unique = 0;
+        for (int i = 0; i < count; ++i) {
+            if (unique == 0 || !layouts[i].equals(layouts[unique - 1]))
+                layouts[unique++] = layouts[i];
+        }
+        return unique == layouts.length ? layouts : Arrays.copyOf(layouts, unique);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof String && (mFilter == null || mFilter.mightContain((String)o))
+                && Arrays.binarySearch(mLayouts, o) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return mLayouts.length;
+    }
+
+    /**
+     * Returns the element at the given index, in String.compareTo order
+     */
+    public String get(int index) {
+        return mLayouts[index];
+    }
+
+    /**
+     * Returns the elements of this set that are not in the given set, in linear time by
+     * merging both sorted arrays
+     * @return This set if no element is removed, otherwise a new set
+     */
+    public LayoutSet minus(LayoutSet other) {
+        if (other.mLayouts.length == 0 || mLayouts.length == 0)
+            return this;
+        String[] result = null;
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < mLayouts.length; ++i) {
+            int cmp = -1;
+            while (j < other.mLayouts.length && (cmp = mLayouts[i].compareTo(other.mLayouts[j])) > 0)
+                ++j;
+            if (j < other.mLayouts.length && cmp == 0) {
+                // Removed: copy the elements kept so far on the first removal
+                if (result == null) {
+                    result = new String[mLayouts.length - 1];
+                    System.arraycopy(mLayouts, 0, result, 0, i);
+                    count = i;
+                }
+                ++j;
+            }
+            else if (result != null) {
+                result[count++] = mLayouts[i];
+            }
+        }
+        if (result == null)
+            return this;
+        if (count == 0)
+            return EMPTY;
+        return new LayoutSet(count == result.length ? result : Arrays.copyOf(result, count));
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int mIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mIndex < mLayouts.length;
+            }
+
+            @Override
+            public String next() {
+                if (mIndex >= mLayouts.length)
+                    throw new NoSuchElementException();
+                return mLayouts[mIndex++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("LayoutSet is immutable");
+            }
+        };
+    }
+
+    @Override
+    public Object[] toArray() {
+        return mLayouts.clone();
+    }
+
+    /**
+     * Returns a copy of this set sorted by the default locale's collation, e.g., for
+     * displaying it to the user
+     */
+    public TreeSet<String> toCollatedSet() {
+        TreeSet<String> result = new TreeSet<>(new CollatorWrapper());
+        for (String layout : mLayouts)
+            result.add(layout);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof LayoutSet)
+            return Arrays.equals(mLayouts, ((LayoutSet)o).mLayouts);
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 0;
+        for (String layout : mLayouts)
+            result += layout.hashCode();
+        return result;
+    }
+}
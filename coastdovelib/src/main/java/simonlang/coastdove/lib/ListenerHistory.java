@@ -0,0 +1,155 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recent events detected by a listener, one ring buffer per event type. Each entry is
+ * timestamped with the time the core detected the event (if sent), or the time it was
+ * received otherwise, as SystemClock.elapsedRealtimeNanos. Dwell times only count the
+ * time the app was open and the screen was on.
+ */
+public class ListenerHistory {
+    /** Default number of entries kept per event type */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final HistoryBuffer<String> mActivities;
+    private final HistoryBuffer<LayoutSet> mLayouts;
+    private final HistoryBuffer<List<InteractionEventData>> mInteractions;
+    private final HistoryBuffer<String> mNotifications;
+    private final HistoryBuffer<ScrollPosition> mScrollPositions;
+
+    /**
+     * Creates an empty history
+     * @param capacity    Number of entries kept per event type
+     */
+    public ListenerHistory(int capacity) {
+        mActivities = new HistoryBuffer<>(capacity);
+        mLayouts = new HistoryBuffer<>(capacity);
+        mInteractions = new HistoryBuffer<>(capacity);
+        mNotifications = new HistoryBuffer<>(capacity);
+        mScrollPositions = new HistoryBuffer<>(capacity);
+    }
+
+    /** Activities detected, most recent first */
+    public HistoryBuffer<String> getActivities() {
+        return mActivities;
+    }
+
+    /** Layouts detected, most recent first */
+    public HistoryBuffer<LayoutSet> getLayouts() {
+        return mLayouts;
+    }
+
+    /** Interactions detected, most recent first */
+    public HistoryBuffer<List<InteractionEventData>> getInteractions() {
+        return mInteractions;
+    }
+
+    /** Notifications detected, most recent first */
+    public HistoryBuffer<String> getNotifications() {
+        return mNotifications;
+    }
+
+    /** Scroll positions detected, most recent first */
+    public HistoryBuffer<ScrollPosition> getScrollPositions() {
+        return mScrollPositions;
+    }
+
+    /**
+     * Activities detected within the given time, most recent first
+     * @param nanos    Time span, e.g., TimeUnit.SECONDS.toNanos(10) for the last 10 seconds
+     */
+    public List<String> getActivitiesWithin(long nanos) {
+        return mActivities.getSince(SystemClock.elapsedRealtimeNanos() - nanos);
+    }
+
+    /** Total time (nanoseconds) each activity in the history has been shown until now */
+    public Map<String, Long> getActivityDwellTimes() {
+        return mActivities.getDwellTimes(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Total time (nanoseconds) each layout in the history has been shown until now,
+     * counting a layout for as long as it was part of the layouts detected
+     */
+    public Map<String, Long> getLayoutDwellTimes() {
+        Map<LayoutSet, Long> setDwellTimes = mLayouts.getDwellTimes(SystemClock.elapsedRealtimeNanos());
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<LayoutSet, Long> entry : setDwellTimes.entrySet()) {
+            for (String layout : entry.getKey()) {
+                Long total = result.get(layout);
+                result.put(layout, total == null ? entry.getValue() : total + entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /** Removes all entries */
+    public void clear() {
+        mActivities.clear();
+        mLayouts.clear();
+        mInteractions.clear();
+        mNotifications.clear();
+        mScrollPositions.clear();
+    }
+
+    /** Stops dwell times from accruing, e.g., when the app is closed or the screen turned off */
+    void pause(long timestamp) {
+        mActivities.pause(timestamp);
+        mLayouts.pause(timestamp);
+    }
+
+    /** Lets dwell times accrue again after pause */
+    void resume(long timestamp) {
+        mActivities.resume(timestamp);
+        mLayouts.resume(timestamp);
+    }
+
+    void recordActivity(long timestamp, String activity) {
+        mActivities.add(timestamp, intern(activity));
+    }
+
+    void recordLayouts(long timestamp, LayoutSet layouts) {
+        mLayouts.add(timestamp, layouts);
+    }
+
+    void recordInteraction(long timestamp, List<InteractionEventData> interaction) {
+        mInteractions.add(timestamp, interaction);
+    }
+
+    void recordNotification(long timestamp, String notification) {
+        mNotifications.add(timestamp, intern(notification));
+    }
+
+    void recordScrollPosition(long timestamp, ScrollPosition scrollPosition) {
+        mScrollPositions.add(timestamp, scrollPosition);
+    }
+
+    /** Interns the given string, so that repeated values share one instance */
+    private static String intern(String string) {
+        return string == null ? null : string.intern();
+    }
+}
@@ -0,0 +1,167 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable state of a listener as detected so far, i.e., the last activity, layouts,
+ * interaction etc. A listener service replaces its state as a whole for each event,
+ * so all values of one ListenerState are consistent with each other.
+ */
+public final class ListenerState {
+    /** State before any event has been received */
+    public static final ListenerState INITIAL = new ListenerState("", "", LayoutSet.EMPTY,
+            Collections.<InteractionEventData>emptyList(), "", false, Collections.<String>emptySet(), null, null);
+
+    private final String appPackageName;
+    private final String activity;
+    private final LayoutSet layouts;
+    private final List<InteractionEventData> interaction;
+    private final String notification;
+    private final boolean screenOff;
+    /** Unmodifiable, sorted by package name */
+    private final Set<String> enabledApps;
+    private final ViewTreeNode viewTree;
+    private final ScrollPosition scrollPosition;
+
+    private ListenerState(String appPackageName, String activity, LayoutSet layouts,
+                          List<InteractionEventData> interaction, String notification, boolean screenOff,
+                          Set<String> enabledApps, ViewTreeNode viewTree, ScrollPosition scrollPosition) {
+        this.appPackageName = appPackageName;
+        this.activity = activity;
+        this.layouts = layouts;
+        this.interaction = interaction;
+        this.notification = notification;
+        this.screenOff = screenOff;
+        this.enabledApps = enabledApps;
+        this.viewTree = viewTree;
+        this.scrollPosition = scrollPosition;
+    }
+
+    /** Last package name detected, or "" if none so far */
+    public String getAppPackageName() {
+        return appPackageName;
+    }
+
+    /** Last activity detected, or "" if none so far */
+    public String getActivity() {
+        return activity;
+    }
+
+    /** Last layouts detected (empty set if none) */
+    public LayoutSet getLayouts() {
+        return layouts;
+    }
+
+    /** Last interaction detected (empty if none), unmodifiable */
+    public List<InteractionEventData> getInteraction() {
+        return interaction;
+    }
+
+    /** Last notification detected, or "" if none so far */
+    public String getNotification() {
+        return notification;
+    }
+
+    /** Whether the screen is off, according to the last screen state detected (false by default) */
+    public boolean isScreenOff() {
+        return screenOff;
+    }
+
+    /** Apps for which the listener is enabled, unmodifiable */
+    public Set<String> getEnabledApps() {
+        return enabledApps;
+    }
+
+    /** Last view tree received, or null if none has been requested */
+    public ViewTreeNode getViewTree() {
+        return viewTree;
+    }
+
+    /** Last scroll position detected, or null if none so far */
+    public ScrollPosition getScrollPosition() {
+        return scrollPosition;
+    }
+
+    ListenerState withAppPackageName(String appPackageName) {
+        return new ListenerState(appPackageName, activity, layouts, interaction, notification,
+                screenOff, enabledApps, viewTree, scrollPosition);
+    }
+
+    ListenerState withActivity(String activity) {
+        return new ListenerState(appPackageName, activity, layouts, interaction, notification,
+                screenOff, enabledApps, viewTree, scrollPosition);
+    }
+
+    ListenerState withLayouts(LayoutSet layouts) {
+        return new ListenerState(appPackageName, activity, layouts, interaction, notification,
+                screenOff, enabledApps, viewTree, scrollPosition);
+    }
+
+    /** The interaction is copied */
+    ListenerState withInteraction(Collection<InteractionEventData> interaction) {
+        List<InteractionEventData> copy = Collections.unmodifiableList(new ArrayList<>(interaction));
+        return new ListenerState(appPackageName, activity, layouts, copy, notification,
+                screenOff, enabledApps, viewTree, scrollPosition);
+    }
+
+    ListenerState withNotification(String notification) {
+        return new ListenerState(appPackageName, activity, layouts, interaction, notification,
+                screenOff, enabledApps, viewTree, scrollPosition);
+    }
+
+    ListenerState withScreenOff(boolean screenOff) {
+        return new ListenerState(appPackageName, activity, layouts, interaction, notification,
+                screenOff, enabledApps, viewTree, scrollPosition);
+    }
+
+    ListenerState withEnabledApp(String app, boolean enabled) {
+        if (app == null || enabledApps.contains(app) == enabled)
+            return this;
+        TreeSet<String> apps = new TreeSet<>(enabledApps);
+        if (enabled)
+            apps.add(app);
+        else
+            apps.remove(app);
+        return new ListenerState(appPackageName, activity, layouts, interaction, notification,
+                screenOff, Collections.unmodifiableSet(apps), viewTree, scrollPosition);
+    }
+
+    /** Returns this app's state, with the screen state and enabled apps of the given state */
+    ListenerState withGlobalStateOf(ListenerState current) {
+        return new ListenerState(appPackageName, activity, layouts, interaction, notification,
+                current.screenOff, current.enabledApps, viewTree, scrollPosition);
+    }
+
+    ListenerState withViewTree(ViewTreeNode viewTree) {
+        return new ListenerState(appPackageName, activity, layouts, interaction, notification,
+                screenOff, enabledApps, viewTree, scrollPosition);
+    }
+
+    ListenerState withScrollPosition(ScrollPosition scrollPosition) {
+        return new ListenerState(appPackageName, activity, layouts, interaction, notification,
+                screenOff, enabledApps, viewTree, scrollPosition);
+    }
+}
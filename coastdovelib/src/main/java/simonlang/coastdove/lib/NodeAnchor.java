@@ -0,0 +1,196 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+
+/**
+ * Anchors an overlay to a node of the view tree, i.e., places it at the node's bounds
+ * (plus an offset) whenever a view tree is received. The overlay is only moved if the
+ * node's bounds have changed, and hidden while the node is not found or not visible to
+ * the user. While the list containing the node is scrolled, the overlay is moved by the
+ * distance estimated from the scroll positions, until the next view tree corrects it.
+ * Register anchors with CoastDoveListenerService.addNodeAnchor.
+ */
+public class NodeAnchor {
+    /** Overlay placed at the node */
+    private Overlay mOverlay;
+    /** Finds the node in a view tree */
+    private ViewTreeNode.Filter mFilter;
+    /** Horizontal offset from the node's left edge */
+    private int mOffsetX;
+    /** Vertical offset from the node's top edge */
+    private int mOffsetY;
+    /** Whether the overlay takes the node's size */
+    private boolean mMatchSize;
+    /** Bounds of the node in the current view tree */
+    private Rect mBounds;
+    /** Bounds of the node when the overlay was last placed */
+    private Rect mAppliedBounds;
+    /** Whether the overlay has been shown by this anchor */
+    private boolean mShown;
+    /** Bounds of the scrollable ancestor of the node, or null if it has none */
+    private Rect mListBounds;
+    /** Scroll position when the view tree was received, or null if unknown */
+    private ScrollPosition mReferencePosition;
+    /** Estimated height of a list item, in pixels */
+    private float mItemHeight;
+
+    /**
+     * Anchors the overlay to the node whose resource ID ends with the given string
+     * @param overlay       Overlay to place
+     * @param resourceID    Android ID, or ViewIDResourceName, of the node
+     * @param offsetX       Horizontal offset from the node's left edge
+     * @param offsetY       Vertical offset from the node's top edge
+     * @param matchSize     If true, the overlay is sized like the node; otherwise, only its position is set
+     */
+    public NodeAnchor(@NonNull Overlay overlay, @NonNull final String resourceID,
+                      int offsetX, int offsetY, boolean matchSize) {
+        this(overlay, new ViewTreeNode.Filter() {
+            @Override
+            public boolean filter(ViewTreeNode node) {
+                return node.viewIDResourceName().endsWith(resourceID);
+            }
+        }, offsetX, offsetY, matchSize);
+    }
+
+    /**
+     * Anchors the overlay to the first node passing the given filter
+     * @param overlay      Overlay to place
+     * @param filter       Filter that the node must pass
+     * @param offsetX      Horizontal offset from the node's left edge
+     * @param offsetY      Vertical offset from the node's top edge
+     * @param matchSize    If true, the overlay is sized like the node; otherwise, only its position is set
+     */
+    public NodeAnchor(@NonNull Overlay overlay, @NonNull ViewTreeNode.Filter filter,
+                      int offsetX, int offsetY, boolean matchSize) {
+        mOverlay = overlay;
+        mFilter = filter;
+        mOffsetX = offsetX;
+        mOffsetY = offsetY;
+        mMatchSize = matchSize;
+        mBounds = new Rect();
+        mAppliedBounds = null;
+        mShown = false;
+    }
+
+    /**
+     * Places the overlay according to the given view tree: hides it if the node is not
+     * found or not visible to the user, otherwise moves it if the node's bounds have
+     * changed and shows it
+     * @param viewTree    View tree received, may be null
+     */
+    public void update(ViewTreeNode viewTree) {
+        update(viewTree, null);
+    }
+
+    /**
+     * Places the overlay according to the given view tree (see update(ViewTreeNode)), and
+     * remembers the scroll position at that time to move the overlay when scrolled
+     * @param viewTree          View tree received, may be null
+     * @param scrollPosition    Scroll position when the view tree was received, may be null
+     */
+    public void update(ViewTreeNode viewTree, ScrollPosition scrollPosition) {
+        mListBounds = null;
+        mReferencePosition = null;
+        ViewTreeNode node = viewTree != null ? viewTree.findNode(mFilter) : null;
+        if (node == null || !node.isVisibleToUser()) {
+            hide();
+            return;
+        }
+
+        node.getBoundsInScreen(mBounds);
+        if (mBounds.isEmpty()) {
+            hide();
+            return;
+        }
+        place(mBounds.left, mBounds.top);
+
+        ViewTreeNode list = node.getParent();
+        while (list != null && !list.isScrollable())
+            list = list.getParent();
+        if (list != null && scrollPosition != null) {
+            int visibleItems = scrollPosition.getToIndex() - scrollPosition.getFromIndex() + 1;
+            Rect listBounds = new Rect();
+            list.getBoundsInScreen(listBounds);
+            if (visibleItems > 0 && !listBounds.isEmpty()) {
+                mListBounds = listBounds;
+                mReferencePosition = scrollPosition;
+                mItemHeight = listBounds.height() / (float)visibleItems;
+            }
+        }
+    }
+
+    /**
+     * Moves the overlay by the distance estimated from the difference between the given
+     * scroll position and the one when the view tree was received, assuming items of
+     * equal height in a vertical list. Hides the overlay if the node is estimated to be
+     * scrolled out of the list. Does nothing if the node is not in a scrollable list.
+     * @param scrollPosition    Scroll position detected
+     */
+    public void scrolled(ScrollPosition scrollPosition) {
+        if (mListBounds == null || mReferencePosition == null || scrollPosition == null)
+            return;
+        int dy = Math.round((mReferencePosition.getFromIndex() - scrollPosition.getFromIndex()) * mItemHeight);
+        int top = mBounds.top + dy;
+        if (top + mBounds.height() <= mListBounds.top || top >= mListBounds.bottom) {
+            hide();
+            return;
+        }
+        place(mBounds.left, top);
+    }
+
+    /** Moves the overlay to the given position of the node, unless it is there already, and shows it */
+    private void place(int left, int top) {
+        if (mAppliedBounds == null || mAppliedBounds.left != left || mAppliedBounds.top != top
+                || mAppliedBounds.width() != mBounds.width() || mAppliedBounds.height() != mBounds.height()) {
+            if (mMatchSize)
+                mOverlay.setBounds(left + mOffsetX, top + mOffsetY, mBounds.width(), mBounds.height());
+            else
+                mOverlay.setPosition(left + mOffsetX, top + mOffsetY);
+            if (mAppliedBounds == null)
+                mAppliedBounds = new Rect();
+            mAppliedBounds.set(left, top, left + mBounds.width(), top + mBounds.height());
+        }
+        if (!mShown) {
+            mOverlay.show();
+            mShown = true;
+        }
+    }
+
+    /** Hides the overlay if it has been shown by this anchor */
+    public void hide() {
+        if (mShown) {
+            mOverlay.hide();
+            mShown = false;
+        }
+    }
+
+    /** Overlay placed at the node */
+    public Overlay getOverlay() {
+        return mOverlay;
+    }
+
+    /** Whether the overlay is currently shown by this anchor */
+    public boolean isShown() {
+        return mShown;
+    }
+}
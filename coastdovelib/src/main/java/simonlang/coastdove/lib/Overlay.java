@@ -22,13 +22,18 @@ import android.content.Context;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.support.annotation.NonNull;
+import android.support.v4.view.AsyncLayoutInflater;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.WindowManager;
 
 /**
- * This class allows simplified creation of overlays
+ * This class allows simplified creation of overlays. Overlays must be used on the main
+ * thread. Changes to the layout parameters are applied to the window manager once per
+ * frame; call flush to apply them right away.
  */
 public class Overlay {
     /** App context */
@@ -45,6 +50,22 @@ public class Overlay {
     private View mView;
     /** Indicates whether the layout is inflated or not */
     private boolean mInflated;
+    /** Pool to take the view from and return it to, or null */
+    private OverlayViewPool mPool;
+    /** Indicates whether the view is being inflated on a background thread */
+    private boolean mPreInflating;
+    /** Indicates whether the view has been given instead of a layout resource */
+    private boolean mViewProvided;
+    /** Indicates whether changed layout parameters are waiting for the next frame */
+    private boolean mUpdatePending;
+    /** Applies changed layout parameters on the next frame */
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mUpdatePending = false;
+            updateView();
+        }
+    };
 
     /**
      * Creates an overlay with default parameters: wrap content, not focusable,
@@ -93,14 +114,81 @@ public class Overlay {
     }
 
     /**
-     * Inflates the view and adds it to the window manager. Safe to call even if already inflated.
+     * Creates an overlay showing the given view instead of inflating a layout
+     * @param context    App context
+     * @param view       View to show
+     * @param params     Custom layout parameters
+     */
+    public Overlay(@NonNull Context context, @NonNull View view, @NonNull WindowManager.LayoutParams params) {
+        this(context, 0, params);
+        mView = view;
+        mViewProvided = true;
+    }
+
+    /**
+     * Creates an overlay with default parameters (see Overlay(Context, int)), whose view is
+     * taken from the given pool if possible, and returned to it by release
+     * @param context     App context
+     * @param resource    Layout resource to inflate
+     * @param pool        Pool of views
+     */
+    public Overlay(@NonNull Context context, int resource, @NonNull OverlayViewPool pool) {
+        this(context, resource);
+        mPool = pool;
+    }
+
+    /**
+     * Creates an overlay whose view is taken from the given pool if possible, and returned
+     * to it by release
+     * @param context     App context
+     * @param resource    Layout resource to inflate
+     * @param params      Custom layout parameters
+     * @param pool        Pool of views
+     */
+    public Overlay(@NonNull Context context, int resource, @NonNull WindowManager.LayoutParams params,
+                   @NonNull OverlayViewPool pool) {
+        this(context, resource, params);
+        mPool = pool;
+    }
+
+    /**
+     * Inflates the view on a background thread (or takes it from the pool), without adding
+     * it to the window manager, so that show does not need to inflate it. Does nothing
+     * if the view has already been inflated.
+     */
+    public void preInflate() {
+        if (mView != null || mPreInflating)
+            return;
+        if (mPool != null) {
+            mView = mPool.poll(mResource);
+            if (mView != null)
+                return;
+        }
+        mPreInflating = true;
+        new AsyncLayoutInflater(mContext).inflate(mResource, null, new AsyncLayoutInflater.OnInflateFinishedListener() {
+            @Override
+            public void onInflateFinished(View view, int resid, ViewGroup parent) {
+                mPreInflating = false;
+                if (mView == null)
+                    mView = view;
+                else if (mPool != null)
+                    mPool.release(resid, view);
+            }
+        });
+    }
+
+    /**
+     * Inflates the view (or takes it from the pool) and adds it to the window manager.
+     * Safe to call even if already inflated.
      */
     public void inflate() {
         if (mView == null)
-            mView = mInflater.inflate(mResource, null, false);
+            mView = mPool != null ? mPool.acquire(mResource) : mInflater.inflate(mResource, null, false);
 
-        if (!mInflated)
+        if (!mInflated) {
+            cancelUpdate();
             mWindowManager.addView(mView, mParams);
+        }
         mInflated = true;
     }
 
@@ -109,11 +197,29 @@ public class Overlay {
      * possibly when exiting the associated app. Safe to call when already destroyed.
      */
     public void remove() {
+        cancelUpdate();
         if (mView != null && mInflated)
             mWindowManager.removeView(mView);
         mInflated = false;
     }
 
+    /**
+     * Removes the view from the window manager and returns it to the pool, if any, so that
+     * other overlays of the same layout can use it. The next show inflates or takes a view
+     * again. Views are returned visible; any other changes to them are kept. For overlays
+     * created with a view, this is the same as remove.
+     */
+    public void release() {
+        remove();
+        if (mViewProvided)
+            return;
+        if (mView != null && mPool != null) {
+            mView.setVisibility(View.VISIBLE);
+            mPool.release(mResource, mView);
+        }
+        mView = null;
+    }
+
     /**
      * Sets the layout's visibility to visible, inflating it beforehand if it wasn't
      */
@@ -159,7 +265,7 @@ public class Overlay {
     public void setPosition(int x, int y) {
         mParams.x = x;
         mParams.y = y;
-        updateView();
+        scheduleUpdate();
     }
 
     /**
@@ -168,7 +274,7 @@ public class Overlay {
     public void setSize(int width, int height) {
         mParams.width = width;
         mParams.height = height;
-        updateView();
+        scheduleUpdate();
     }
 
     /**
@@ -179,7 +285,7 @@ public class Overlay {
         mParams.y = y;
         mParams.width = width;
         mParams.height = height;
-        updateView();
+        scheduleUpdate();
     }
 
     /**
@@ -194,7 +300,7 @@ public class Overlay {
         mParams.y = bounds.top;
         mParams.width = bounds.right - bounds.left;
         mParams.height = bounds.bottom - bounds.top;
-        updateView();
+        scheduleUpdate();
     }
 
     /**
@@ -203,11 +309,42 @@ public class Overlay {
      */
     public void setLayoutParams(WindowManager.LayoutParams params) {
         mParams = params;
-        updateView();
+        scheduleUpdate();
+    }
+
+    /**
+     * Applies changed layout parameters right away instead of on the next frame.
+     * Does nothing if there are no changes waiting.
+     */
+    public void flush() {
+        if (mUpdatePending) {
+            cancelUpdate();
+            updateView();
+        }
+    }
+
+    /**
+     * Applies the layout parameters on the next frame, unless already scheduled.
+     * Several changes within one frame result in one window manager call.
+     */
+    private void scheduleUpdate() {
+        if (mUpdatePending || mView == null || !mInflated)
+            return;
+        mUpdatePending = true;
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    /** Cancels applying the layout parameters on the next frame */
+    private void cancelUpdate() {
+        if (mUpdatePending) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mUpdatePending = false;
+        }
     }
 
     /**
-     * Updates the view (automatically called when layout parameters are changed)
+     * Updates the view right away (automatically called on the next frame when layout
+     * parameters are changed)
      */
     protected void updateView() {
         if (mView != null && mInflated)
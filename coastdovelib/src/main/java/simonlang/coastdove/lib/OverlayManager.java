@@ -0,0 +1,284 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Manages several overlays with z-order and groups. Changes (showing, hiding, removing,
+ * as well as layout changes of the overlays) are applied together once per frame, or
+ * right away using flush. Overlays with a higher z-order are shown above those with a
+ * lower one. Must be used on the main thread.
+ */
+public class OverlayManager {
+    /** Group of overlays added without a group */
+    public static final String DEFAULT_GROUP = "";
+
+    /** Requested state of an overlay */
+    private static final int STATE_REMOVED = 0;
+    private static final int STATE_HIDDEN = 1;
+    private static final int STATE_VISIBLE = 2;
+
+    /**
+     * An overlay managed, with its group, z-order, and states
+     */
+    private static class Entry {
+        final Overlay overlay;
+        String group;
+        int zOrder;
+        /** State requested, to be applied on the next frame */
+        int requestedState;
+        /** State applied */
+        int appliedState;
+        /** Whether the overlay is to be forgotten once removed */
+        boolean discard;
+
+        Entry(Overlay overlay, String group, int zOrder) {
+            this.overlay = overlay;
+            this.group = group;
+            this.zOrder = zOrder;
+            this.requestedState = STATE_REMOVED;
+            this.appliedState = overlay.isInflated() ? STATE_VISIBLE : STATE_REMOVED;
+        }
+    }
+
+    /** Overlays managed, sorted by z-order (ascending) */
+    private List<Entry> mEntries;
+    /** Overlays managed */
+    private Map<Overlay, Entry> mEntriesByOverlay;
+    /** Whether changes are waiting for the next frame */
+    private boolean mApplyPending;
+    /** Applies the changes on the next frame */
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mApplyPending = false;
+            apply();
+        }
+    };
+
+    /** Creates an empty overlay manager */
+    public OverlayManager() {
+        mEntries = new ArrayList<>();
+        mEntriesByOverlay = new HashMap<>();
+        mApplyPending = false;
+    }
+
+    /**
+     * Adds an overlay to the default group with z-order 0. It is not shown until show is called.
+     * @param overlay    Overlay to manage
+     */
+    public void add(@NonNull Overlay overlay) {
+        add(overlay, DEFAULT_GROUP, 0);
+    }
+
+    /**
+     * Adds an overlay, or changes its group and z-order if it has been added already.
+     * It is not shown until show is called.
+     * @param overlay    Overlay to manage
+     * @param group      Group of the overlay
+     * @param zOrder     Z-order of the overlay, higher values are shown above lower ones
+     */
+    public void add(@NonNull Overlay overlay, @NonNull String group, int zOrder) {
+        Entry entry = mEntriesByOverlay.get(overlay);
+        if (entry == null) {
+            entry = new Entry(overlay, group, zOrder);
+            mEntriesByOverlay.put(overlay, entry);
+            if (entry.appliedState != STATE_REMOVED)
+                entry.requestedState = STATE_VISIBLE;
+        }
+        else {
+            mEntries.remove(entry);
+            entry.group = group;
+            entry.discard = false;
+            if (entry.zOrder != zOrder && entry.appliedState != STATE_REMOVED) {
+                // Re-add the window to move it
+                entry.overlay.remove();
+                entry.appliedState = STATE_REMOVED;
+            }
+            entry.zOrder = zOrder;
+        }
+        insertSorted(entry);
+        scheduleApply();
+    }
+
+    /** Shows the given overlay on the next frame */
+    public void show(@NonNull Overlay overlay) {
+        request(overlay, STATE_VISIBLE);
+    }
+
+    /** Hides the given overlay on the next frame */
+    public void hide(@NonNull Overlay overlay) {
+        request(overlay, STATE_HIDDEN);
+    }
+
+    /** Removes the given overlay from the window manager on the next frame and stops managing it */
+    public void remove(@NonNull Overlay overlay) {
+        Entry entry = mEntriesByOverlay.get(overlay);
+        if (entry != null) {
+            entry.discard = true;
+            request(overlay, STATE_REMOVED);
+        }
+    }
+
+    /** Shows all overlays of the given group on the next frame */
+    public void showGroup(@NonNull String group) {
+        requestGroup(group, STATE_VISIBLE, false);
+    }
+
+    /** Hides all overlays of the given group on the next frame */
+    public void hideGroup(@NonNull String group) {
+        requestGroup(group, STATE_HIDDEN, false);
+    }
+
+    /** Removes all overlays of the given group on the next frame and stops managing them */
+    public void removeGroup(@NonNull String group) {
+        requestGroup(group, STATE_REMOVED, true);
+    }
+
+    /** Hides all overlays on the next frame, e.g., when the associated app is closed */
+    public void hideAll() {
+        for (Entry entry : mEntries) {
+            if (entry.requestedState == STATE_VISIBLE)
+                entry.requestedState = STATE_HIDDEN;
+        }
+        scheduleApply();
+    }
+
+    /**
+     * Removes all overlays from the window manager right away and stops managing them,
+     * e.g., when the service is unbound
+     */
+    public void removeAll() {
+        cancelApply();
+        for (Entry entry : mEntries)
+            entry.overlay.remove();
+        mEntries.clear();
+        mEntriesByOverlay.clear();
+    }
+
+    /** Applies all changes waiting for the next frame right away */
+    public void flush() {
+        cancelApply();
+        apply();
+    }
+
+    /** Number of overlays managed */
+    public int size() {
+        return mEntries.size();
+    }
+
+    private void request(Overlay overlay, int state) {
+        Entry entry = mEntriesByOverlay.get(overlay);
+        if (entry == null)
+            throw new IllegalArgumentException("Overlay is not managed by this OverlayManager");
+        entry.requestedState = state;
+        scheduleApply();
+    }
+
+    private void requestGroup(String group, int state, boolean discard) {
+        for (Entry entry : mEntries) {
+            if (entry.group.equals(group)) {
+                entry.requestedState = state;
+                entry.discard |= discard;
+            }
+        }
+        scheduleApply();
+    }
+
+    /** Inserts the entry after all entries with a lower or equal z-order */
+    private void insertSorted(Entry entry) {
+        int index = mEntries.size();
+        while (index > 0 && mEntries.get(index - 1).zOrder > entry.zOrder)
+            --index;
+        mEntries.add(index, entry);
+    }
+
+    private void scheduleApply() {
+        if (mApplyPending)
+            return;
+        mApplyPending = true;
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    private void cancelApply() {
+        if (mApplyPending) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mApplyPending = false;
+        }
+    }
+
+    /**
+     * Applies the requested states and the overlays' layout changes. Windows are stacked
+     * in the order they are added, so if an overlay needs to be added below overlays that
+     * are already shown, those are added again above it.
+     */
+    private void apply() {
+        boolean restack = false;
+        for (int i = 0; i < mEntries.size(); ++i) {
+            Entry entry = mEntries.get(i);
+            boolean attach = entry.requestedState == STATE_VISIBLE && entry.appliedState == STATE_REMOVED;
+            if (attach)
+                restack = true;
+            else if (restack && entry.appliedState != STATE_REMOVED && entry.requestedState != STATE_REMOVED) {
+                entry.overlay.remove();
+                entry.appliedState = STATE_REMOVED;
+            }
+        }
+
+        for (int i = 0; i < mEntries.size(); ++i) {
+            Entry entry = mEntries.get(i);
+            switch (entry.requestedState) {
+                case STATE_VISIBLE:
+                    entry.overlay.show();
+                    entry.appliedState = STATE_VISIBLE;
+                    break;
+                case STATE_HIDDEN:
+                    // Overlays that are not added to the window manager stay that way
+                    if (entry.appliedState == STATE_VISIBLE) {
+                        entry.overlay.hide();
+                        entry.appliedState = STATE_HIDDEN;
+                    }
+                    break;
+                case STATE_REMOVED:
+                    if (entry.appliedState != STATE_REMOVED) {
+                        entry.overlay.remove();
+                        entry.appliedState = STATE_REMOVED;
+                    }
+                    break;
+            }
+            entry.overlay.flush();
+        }
+
+        for (int i = mEntries.size() - 1; i >= 0; --i) {
+            Entry entry = mEntries.get(i);
+            if (entry.discard && entry.requestedState == STATE_REMOVED) {
+                mEntries.remove(i);
+                mEntriesByOverlay.remove(entry.overlay);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import android.content.Context;
+import android.support.annotation.LayoutRes;
+import android.support.annotation.NonNull;
+import android.support.v4.view.AsyncLayoutInflater;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of inflated overlay views per layout resource, so that overlays popping up
+ * repeatedly need not inflate their layout each time. Views can be pre-inflated on a
+ * background thread. Must be used on the main thread.
+ */
+public class OverlayViewPool {
+    /** Default maximum number of views kept per layout resource */
+    public static final int DEFAULT_MAX_VIEWS_PER_RESOURCE = 4;
+
+    /** Used to inflate views if none are pooled */
+    private LayoutInflater mInflater;
+    /** Used to pre-inflate views on a background thread */
+    private AsyncLayoutInflater mAsyncInflater;
+    /** Pooled views per layout resource */
+    private SparseArray<ArrayDeque<View>> mViews;
+    /** Number of views being pre-inflated per layout resource */
+    private SparseIntArray mPending;
+    /** Maximum number of views kept per layout resource */
+    private int mMaxViewsPerResource;
+
+    /**
+     * Creates an empty pool keeping up to DEFAULT_MAX_VIEWS_PER_RESOURCE views per resource
+     * @param context    App context
+     */
+    public OverlayViewPool(@NonNull Context context) {
+        this(context, DEFAULT_MAX_VIEWS_PER_RESOURCE);
+    }
+
+    /**
+     * Creates an empty pool
+     * @param context                App context
+     * @param maxViewsPerResource    Maximum number of views kept per layout resource
+     */
+    public OverlayViewPool(@NonNull Context context, int maxViewsPerResource) {
+        mInflater = LayoutInflater.from(context);
+        mAsyncInflater = new AsyncLayoutInflater(context);
+        mViews = new SparseArray<>();
+        mPending = new SparseIntArray();
+        mMaxViewsPerResource = maxViewsPerResource;
+    }
+
+    /**
+     * Inflates views of the given layout on a background thread until the given number
+     * of views is pooled (or being inflated)
+     * @param resource    Layout resource to inflate
+     * @param count       Number of views to keep ready
+     */
+    public void preInflate(@LayoutRes int resource, int count) {
+        count = Math.min(count, mMaxViewsPerResource);
+        int missing = count - getPooledCount(resource) - mPending.get(resource);
+        for (int i = 0; i < missing; ++i) {
+            mPending.put(resource, mPending.get(resource) + 1);
+            mAsyncInflater.inflate(resource, null, new AsyncLayoutInflater.OnInflateFinishedListener() {
+                @Override
+                public void onInflateFinished(View view, int resid, ViewGroup parent) {
+                    mPending.put(resid, mPending.get(resid) - 1);
+                    release(resid, view);
+                }
+            });
+        }
+    }
+
+    /**
+     * Takes a pooled view of the given layout, or inflates one if none is pooled
+     * @param resource    Layout resource
+     * @return View of the given layout, not attached to any parent
+     */
+    public View acquire(@LayoutRes int resource) {
+        View view = poll(resource);
+        if (view == null)
+            view = mInflater.inflate(resource, null, false);
+        return view;
+    }
+
+    /**
+     * Takes a pooled view of the given layout
+     * @param resource    Layout resource
+     * @return View of the given layout, or null if none is pooled
+     */
+    public View poll(@LayoutRes int resource) {
+        ArrayDeque<View> views = mViews.get(resource);
+        return views == null ? null : views.pollFirst();
+    }
+
+    /**
+     * Returns a view to the pool. The view must not be attached to a parent or window and
+     * should be reset to its original state. If the pool is full, the view is dropped.
+     * @param resource    Layout resource the view was inflated from
+     * @param view        View to return
+     */
+    public void release(@LayoutRes int resource, @NonNull View view) {
+        ArrayDeque<View> views = mViews.get(resource);
+        if (views == null) {
+            views = new ArrayDeque<>(mMaxViewsPerResource);
+            mViews.put(resource, views);
+        }
+        if (views.size() < mMaxViewsPerResource)
+            views.addFirst(view);
+    }
+
+    /** Number of views of the given layout currently pooled */
+    public int getPooledCount(@LayoutRes int resource) {
+        ArrayDeque<View> views = mViews.get(resource);
+        return views == null ? 0 : views.size();
+    }
+
+    /** Drops all pooled views */
+    public void clear() {
+        mViews.clear();
+    }
+}
@@ -0,0 +1,173 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches package names against a set of patterns, in which '*' stands for any sequence
+ * of characters (e.g., "com.example.*"). The patterns are compiled into a trie, so
+ * matching takes time proportional to the length of the package name rather than the
+ * number of patterns.
+ */
+public class PackageFilter {
+    /** Wildcard character in patterns */
+    public static final char WILDCARD = '*';
+
+    /**
+     * Trie node
+     */
+    private static final class Node {
+        /** Successors for literal characters */
+        final Map<Character, Node> children = new HashMap<>();
+        /** Successor for a wildcard, or null */
+        Node wildcard;
+        /** Whether this node is reached by a wildcard, i.e., matches any character itself */
+        final boolean isWildcard;
+        /** Whether a pattern ends at this node */
+        boolean terminal;
+        /** Last match in which this node has been added to the active nodes */
+        int visited;
+
+        Node(boolean isWildcard) {
+            this.isWildcard = isWildcard;
+        }
+    }
+
+    /** Root of the trie */
+    private final Node mRoot;
+    /** Whether a pattern matches every package name */
+    private final boolean mMatchesAll;
+    /** Patterns given */
+    private final List<String> mPatterns;
+    /** Number of matches so far, to mark visited nodes */
+    private int mGeneration;
+    /** Nodes active before and after the current character, reused by all matches */
+    private final ArrayList<Node> mActive = new ArrayList<>();
+    private final ArrayList<Node> mNext = new ArrayList<>();
+
+    /**
+     * Compiles the given patterns
+     * @param patterns    Package names or patterns containing '*' (null elements are ignored)
+     */
+    public PackageFilter(Collection<String> patterns) {
+        mRoot = new Node(false);
+        mPatterns = new ArrayList<>(patterns.size());
+        boolean matchesAll = false;
+        for (String pattern : patterns) {
+            if (pattern == null)
+                continue;
+            mPatterns.add(pattern);
+            Node node = mRoot;
+            boolean onlyWildcards = true;
+            for (int i = 0; i < pattern.length(); ++i) {
+                char c = pattern.charAt(i);
+                if (c == WILDCARD) {
+                    if (node.isWildcard)
+                        continue; // "**" is the same as "*"
+                    if (node.wildcard == null)
+                        node.wildcard = new Node(true);
+                    node = node.wildcard;
+                }
+                else {
+                    onlyWildcards = false;
+                    Node child = node.children.get(c);
+                    if (child == null) {
+                        child = new Node(false);
+                        node.children.put(c, child);
+                    }
+                    node = child;
+                }
+            }
+            node.terminal = true;
+            if (onlyWildcards && pattern.length() > 0)
+                matchesAll = true;
+        }
+        mMatchesAll = matchesAll;
+    }
+
+    /** Indicates whether the given string contains a wildcard */
+    public static boolean isPattern(String string) {
+        return string.indexOf(WILDCARD) >= 0;
+    }
+
+    /** Indicates whether every package name matches */
+    public boolean matchesAll() {
+        return mMatchesAll;
+    }
+
+    /** Patterns given */
+    public List<String> getPatterns() {
+        return mPatterns;
+    }
+
+    /**
+     * Indicates whether the given package name matches any of the patterns. Does not
+     * allocate, except for characters outside the Character cache range.
+     * @param packageName    Package name to check, may be null (never matches)
+     */
+    public synchronized boolean matches(String packageName) {
+        if (packageName == null)
+            return false;
+        if (mMatchesAll)
+            return true;
+
+        List<Node> active = mActive;
+        List<Node> next = mNext;
+        active.clear();
+        ++mGeneration;
+        addActive(active, mRoot);
+        for (int i = 0; i < packageName.length() && !active.isEmpty(); ++i) {
+            char c = packageName.charAt(i);
+            ++mGeneration;
+            next.clear();
+            for (int j = 0; j < active.size(); ++j) {
+                Node node = active.get(j);
+                if (node.isWildcard)
+                    addActive(next, node);
+                Node child = node.children.get(c);
+                if (child != null)
+                    addActive(next, child);
+            }
+            List<Node> swap = active;
+            active = next;
+            next = swap;
+        }
+        boolean result = false;
+        for (int j = 0; j < active.size() && !result; ++j)
+            result = active.get(j).terminal;
+        mActive.clear();
+        mNext.clear();
+        return result;
+    }
+
+    /** Adds the node to the active nodes, along with its wildcard successor (matching nothing) */
+    private void addActive(List<Node> active, Node node) {
+        while (node != null && node.visited != mGeneration) {
+            node.visited = mGeneration;
+            active.add(node);
+            node = node.wildcard;
+        }
+    }
+}
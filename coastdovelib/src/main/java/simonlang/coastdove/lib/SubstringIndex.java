@@ -0,0 +1,185 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package simonlang.coastdove.lib;
+
+import java.util.Arrays;
+
+/**
+ * Answers whether a string is a substring of any of a fixed set of strings, in time
+ * proportional to the length of the queried string. Implemented as a generalized suffix
+ * automaton, whose states and transitions are stored in primitive arrays.
+ */
+final class SubstringIndex {
+    /** Length of the longest string in each state's equivalence class */
+    private int[] mLength;
+    /** Suffix link of each state, -1 for the root */
+    private int[] mLink;
+    /** First outgoing transition of each state, -1 if none */
+    private int[] mFirstEdge;
+    /** Number of states */
+    private int mStates;
+
+    /** Character of each transition */
+    private char[] mEdgeChar;
+    /** Target state of each transition */
+    private int[] mEdgeTarget;
+    /** Next transition of the same state, -1 if none */
+    private int[] mEdgeNext;
+    /** Number of transitions */
+    private int mEdges;
+
+    /** Whether any string has been added */
+    private boolean mEmpty = true;
+
+    /**
+     * Builds an index over the given strings
+     * @param strings    Strings whose substrings are to be found (null elements are ignored)
+     */
+    SubstringIndex(Iterable<String> strings) {
+        int totalLength = 0;
+        for (String string : strings) {
+            if (string != null)
+                totalLength += string.length();
+        }
+        int capacity = 2 * totalLength + 2;
+        mLength = new int[capacity];
+        mLink = new int[capacity];
+        mFirstEdge = new int[capacity];
+        mEdgeChar = new char[capacity];
+        mEdgeTarget = new int[capacity];
+        mEdgeNext = new int[capacity];
+
+        newState(0, -1);
+        for (String string : strings) {
+            if (string == null)
+                continue;
+            mEmpty = false;
+            int last = 0;
+            for (int i = 0; i < string.length(); ++i)
+                last = extend(last, string.charAt(i));
+        }
+    }
+
+    /**
+     * Indicates whether the given string is a substring of any string in this index.
+     * The empty string is a substring of every string.
+     */
+    boolean containsSubstring(String string) {
+        if (mEmpty)
+            return false;
+        int state = 0;
+        for (int i = 0; i < string.length() && state != -1; ++i)
+            state = transition(state, string.charAt(i));
+        return state != -1;
+    }
+
+    /** Adds one character to the automaton, continuing at state last */
+    private int extend(int last, char c) {
+        int q = transition(last, c);
+        if (q != -1) {
+            // The string so far already occurs in another string
+            if (mLength[last] + 1 == mLength[q])
+                return q;
+            int clone = cloneState(q, mLength[last] + 1);
+            mLink[q] = clone;
+            for (int p = last; p != -1 && transition(p, c) == q; p = mLink[p])
+                setTransition(p, c, clone);
+            return clone;
+        }
+
+        int current = newState(mLength[last] + 1, -1);
+        int p = last;
+        while (p != -1 && transition(p, c) == -1) {
+            setTransition(p, c, current);
+            p = mLink[p];
+        }
+        if (p == -1) {
+            mLink[current] = 0;
+        }
+        else {
+            q = transition(p, c);
+            if (mLength[p] + 1 == mLength[q]) {
+                mLink[current] = q;
+            }
+            else {
+                int clone = cloneState(q, mLength[p] + 1);
+                for (; p != -1 && transition(p, c) == q; p = mLink[p])
+                    setTransition(p, c, clone);
+                mLink[q] = clone;
+                mLink[current] = clone;
+            }
+        }
+        return current;
+    }
+
+    /** Returns the target of the transition from state with c, or -1 if there is none */
+    private int transition(int state, char c) {
+        for (int edge = mFirstEdge[state]; edge != -1; edge = mEdgeNext[edge]) {
+            if (mEdgeChar[edge] == c)
+                return mEdgeTarget[edge];
+        }
+        return -1;
+    }
+
+    /** Sets the transition from state with c, adding it if it does not exist */
+    private void setTransition(int state, char c, int target) {
+        for (int edge = mFirstEdge[state]; edge != -1; edge = mEdgeNext[edge]) {
+            if (mEdgeChar[edge] == c) {
+                mEdgeTarget[edge] = target;
+                return;
+            }
+        }
+        addEdge(state, c, target);
+    }
+
+    private void addEdge(int state, char c, int target) {
+        if (mEdges == mEdgeChar.length) {
+            int capacity = mEdges * 2;
+            mEdgeChar = Arrays.copyOf(mEdgeChar, capacity);
+            mEdgeTarget = Arrays.copyOf(mEdgeTarget, capacity);
+            mEdgeNext = Arrays.copyOf(mEdgeNext, capacity);
+        }
+        mEdgeChar[mEdges] = c;
+        mEdgeTarget[mEdges] = target;
+        mEdgeNext[mEdges] = mFirstEdge[state];
+        mFirstEdge[state] = mEdges;
+        ++mEdges;
+    }
+
+    private int newState(int length, int link) {
+        if (mStates == mLength.length) {
+            int capacity = mStates * 2;
+            mLength = Arrays.copyOf(mLength, capacity);
+            mLink = Arrays.copyOf(mLink, capacity);
+            mFirstEdge = Arrays.copyOf(mFirstEdge, capacity);
+        }
+        mLength[mStates] = length;
+        mLink[mStates] = link;
+        mFirstEdge[mStates] = -1;
+        return mStates++;
+    }
+
+    /** Creates a copy of state q with the given length, including its suffix link and transitions */
+    private int cloneState(int q, int length) {
+        int clone = newState(length, mLink[q]);
+        for (int edge = mFirstEdge[q]; edge != -1; edge = mEdgeNext[edge])
+            addEdge(clone, mEdgeChar[edge], mEdgeTarget[edge]);
+        return clone;
+    }
+}
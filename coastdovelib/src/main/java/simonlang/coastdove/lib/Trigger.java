@@ -0,0 +1,194 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rule of a TriggerEngine: runs an action when an activity, layouts and nodes are
+ * present at the same time, e.g., "when activity X and layout Y are present and node Z
+ * appears, do A". The action runs once when all conditions become true, and again only
+ * after one of them has become false in between. If the trigger has interaction
+ * conditions, its action runs for each interaction with one of the given elements while
+ * the other conditions hold instead.
+ *
+ * Resource IDs of nodes and interactions are given as full ViewIDResourceName
+ * ("com.example:id/button"), which must match exactly, or as Android ID ("id/button") or
+ * entry name ("button"), which match the entry name of a node's resource ID in any package.
+ *
+ * Conditions are added before the trigger is added to an engine; afterwards, it cannot
+ * be changed.
+ */
+public class Trigger {
+    /**
+     * Action run by a trigger
+     */
+    public interface Action {
+        /**
+         * Called on the main thread when the trigger's conditions have become true
+         * @param trigger     Trigger whose conditions are met
+         * @param viewTree    Last view tree received, may be null
+         */
+        void onTriggered(Trigger trigger, ViewTreeNode viewTree);
+    }
+
+    /** Name of this trigger, e.g., for debugging */
+    private final String mName;
+    /** Action to run */
+    private final Action mAction;
+    /** Activity that must be detected, or null for any */
+    private String mActivity;
+    /** Layouts that must be detected */
+    private final List<String> mLayouts;
+    /** Resource IDs of nodes that must be in the view tree */
+    private final List<String> mNodeIDs;
+    /** Filters that nodes of the view tree must pass */
+    private final List<ViewTreeNode.Filter> mNodeFilters;
+    /** Resource IDs of elements to interact with (any of them) */
+    private final List<String> mInteractionIDs;
+    /** Whether the trigger has been added to an engine */
+    private boolean mCompiled;
+
+    // State kept by the TriggerEngine
+    /** Whether the conditions were true when last evaluated */
+    boolean active;
+    /** Number of the event the trigger was last evaluated for */
+    int evaluation;
+
+    /**
+     * Creates a trigger without conditions
+     * @param name      Name of this trigger
+     * @param action    Action to run
+     */
+    public Trigger(@NonNull String name, @NonNull Action action) {
+        mName = name;
+        mAction = action;
+        mActivity = null;
+        mLayouts = new ArrayList<>();
+        mNodeIDs = new ArrayList<>();
+        mNodeFilters = new ArrayList<>();
+        mInteractionIDs = new ArrayList<>();
+        mCompiled = false;
+    }
+
+    /** Requires the given activity to be the last one detected */
+    public Trigger whenActivity(@NonNull String activity) {
+        checkNotCompiled();
+        mActivity = activity;
+        return this;
+    }
+
+    /** Requires the given layout to be among the last layouts detected */
+    public Trigger whenLayout(@NonNull String layout) {
+        checkNotCompiled();
+        mLayouts.add(layout);
+        return this;
+    }
+
+    /**
+     * Requires a node with the given resource ID to be in the last view tree received
+     * @param resourceID    ViewIDResourceName, Android ID or entry name of the node
+     *                      (see the class description)
+     */
+    public Trigger whenNode(@NonNull String resourceID) {
+        checkNotCompiled();
+        mNodeIDs.add(resourceID);
+        return this;
+    }
+
+    /**
+     * Requires a node passing the given filter to be in the last view tree received.
+     * Unlike the other conditions, filters are checked for every view tree received, so
+     * prefer whenNode(String) where possible.
+     */
+    public Trigger whenNode(@NonNull ViewTreeNode.Filter filter) {
+        checkNotCompiled();
+        mNodeFilters.add(filter);
+        return this;
+    }
+
+    /**
+     * Runs the action when the user interacts with an element with the given resource ID.
+     * If called several times, an interaction with any of the elements runs the action.
+     * @param resourceID    ViewIDResourceName, Android ID or entry name of the element
+     *                      (see the class description)
+     */
+    public Trigger whenInteraction(@NonNull String resourceID) {
+        checkNotCompiled();
+        mInteractionIDs.add(resourceID);
+        return this;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public Action getAction() {
+        return mAction;
+    }
+
+    /** Activity required, or null for any */
+    public String getActivity() {
+        return mActivity;
+    }
+
+    public List<String> getLayouts() {
+        return Collections.unmodifiableList(mLayouts);
+    }
+
+    public List<String> getNodeIDs() {
+        return Collections.unmodifiableList(mNodeIDs);
+    }
+
+    public List<ViewTreeNode.Filter> getNodeFilters() {
+        return Collections.unmodifiableList(mNodeFilters);
+    }
+
+    public List<String> getInteractionIDs() {
+        return Collections.unmodifiableList(mInteractionIDs);
+    }
+
+    /** Whether the conditions were true when the trigger was last evaluated */
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public String toString() {
+        return "Trigger " + mName;
+    }
+
+    /** Freezes the conditions, called when the trigger is added to an engine */
+    void compile() {
+        if (mActivity == null && mLayouts.isEmpty() && mNodeIDs.isEmpty()
+                && mNodeFilters.isEmpty() && mInteractionIDs.isEmpty())
+            throw new IllegalArgumentException("Trigger " + mName + " has no conditions");
+        mCompiled = true;
+    }
+
+    private void checkNotCompiled() {
+        if (mCompiled)
+            throw new IllegalStateException("Trigger " + mName + " has already been added to an engine");
+    }
+}
@@ -0,0 +1,337 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the actions of triggers (see Trigger) as the state of a listener changes. When
+ * triggers are added, their conditions are compiled into hash tables keyed by activity,
+ * layout, node resource ID and interaction resource ID, so that each event only
+ * evaluates the triggers it can affect, not every trigger. For a new view tree, only the
+ * node resource IDs registered are looked up, regardless of the tree's size. Get the engine of a listener
+ * using CoastDoveListenerService.getTriggerEngine; all methods must be called on the
+ * main thread.
+ */
+public class TriggerEngine {
+    /** All triggers added */
+    private final List<Trigger> mTriggers = new ArrayList<>();
+    /** Triggers by activity required */
+    private final Map<String, List<Trigger>> mByActivity = new HashMap<>();
+    /** Triggers by layouts required */
+    private final Map<String, List<Trigger>> mByLayout = new HashMap<>();
+    /** Triggers by (short) node resource IDs required */
+    private final Map<String, List<Trigger>> mByNodeID = new HashMap<>();
+    /** Triggers by (short) interaction resource IDs */
+    private final Map<String, List<Trigger>> mByInteractionID = new HashMap<>();
+    /** Triggers with node filters, evaluated for every view tree */
+    private final List<Trigger> mWithNodeFilters = new ArrayList<>();
+    /** Triggers added since the last event, evaluated for the next one */
+    private final List<Trigger> mAdded = new ArrayList<>();
+
+    /** Last state the triggers have been evaluated for */
+    private ListenerState mState = ListenerState.INITIAL;
+    /** Full resource IDs of the nodes of the last view tree */
+    private HashSet<String> mNodeIDs = new HashSet<>();
+    /** Short resource IDs of the nodes of the last view tree */
+    private HashSet<String> mShortNodeIDs = new HashSet<>();
+    /** View tree whose resource IDs are in mNodeIDs, collected on demand */
+    private ViewTreeNode mCollectedViewTree = null;
+    /** Number of the current event, to evaluate each trigger at most once per event */
+    private int mEvaluation = 0;
+    /** Triggers to evaluate for the current event */
+    private final List<Trigger> mCandidates = new ArrayList<>();
+
+    TriggerEngine() {
+    }
+
+    /**
+     * Adds the given trigger, which is evaluated from the next event on
+     * @param trigger    Trigger with at least one condition, which cannot be changed afterwards
+     */
+    public void add(@NonNull Trigger trigger) {
+        if (mTriggers.contains(trigger))
+            return;
+        trigger.compile();
+        trigger.active = false;
+        mTriggers.add(trigger);
+
+        if (trigger.getActivity() != null)
+            put(mByActivity, trigger.getActivity(), trigger);
+        for (String layout : trigger.getLayouts())
+            put(mByLayout, layout, trigger);
+        for (String resourceID : trigger.getNodeIDs())
+            put(mByNodeID, ViewTreeNode.shortResourceID(resourceID), trigger);
+        for (String resourceID : trigger.getInteractionIDs())
+            put(mByInteractionID, ViewTreeNode.shortResourceID(resourceID), trigger);
+        if (!trigger.getNodeFilters().isEmpty())
+            mWithNodeFilters.add(trigger);
+        mAdded.add(trigger);
+    }
+
+    /** Removes the given trigger */
+    public void remove(Trigger trigger) {
+        if (!mTriggers.remove(trigger))
+            return;
+        removeFrom(mByActivity, trigger);
+        removeFrom(mByLayout, trigger);
+        removeFrom(mByNodeID, trigger);
+        removeFrom(mByInteractionID, trigger);
+        mWithNodeFilters.remove(trigger);
+        mAdded.remove(trigger);
+        trigger.active = false;
+    }
+
+    /** Removes all triggers */
+    public void clear() {
+        for (Trigger trigger : mTriggers)
+            trigger.active = false;
+        mTriggers.clear();
+        mByActivity.clear();
+        mByLayout.clear();
+        mByNodeID.clear();
+        mByInteractionID.clear();
+        mWithNodeFilters.clear();
+        mAdded.clear();
+    }
+
+    /** Returns all triggers added, in the order they were added */
+    public List<Trigger> getTriggers() {
+        return new ArrayList<>(mTriggers);
+    }
+
+    public int size() {
+        return mTriggers.size();
+    }
+
+    /**
+     * Evaluates the triggers affected by the differences between the given state and the
+     * one last evaluated, and runs the actions of those whose conditions have become true
+     */
+    void update(ListenerState state) {
+        ListenerState previous = mState;
+        mState = state;
+        if (mTriggers.isEmpty())
+            return;
+        ++mEvaluation;
+        mCandidates.clear();
+        for (int i = 0; i < mAdded.size(); ++i)
+            addCandidate(mAdded.get(i));
+        mAdded.clear();
+
+        if (!state.getActivity().equals(previous.getActivity())) {
+            addCandidates(mByActivity, previous.getActivity());
+            addCandidates(mByActivity, state.getActivity());
+        }
+        if (state.getLayouts() != previous.getLayouts() && !mByLayout.isEmpty()) {
+            LayoutSet changed = state.getLayouts().minus(previous.getLayouts());
+            for (int i = 0; i < changed.size(); ++i)
+                addCandidates(mByLayout, changed.get(i));
+            changed = previous.getLayouts().minus(state.getLayouts());
+            for (int i = 0; i < changed.size(); ++i)
+                addCandidates(mByLayout, changed.get(i));
+        }
+        if (state.getViewTree() != previous.getViewTree()) {
+            ViewTreeNode viewTree = state.getViewTree();
+            // Node IDs are only collected when evaluating triggers the Bloom filter lets through
+            for (Map.Entry<String, List<Trigger>> entry : mByNodeID.entrySet()) {
+                List<Trigger> triggers = entry.getValue();
+                // If the node is gone, only active triggers are affected
+                boolean mightContain = viewTree != null && viewTree.mightContainResourceID(entry.getKey());
+                for (int i = 0; i < triggers.size(); ++i) {
+                    if (mightContain || triggers.get(i).active)
+                        addCandidate(triggers.get(i));
+                }
+            }
+            for (int i = 0; i < mWithNodeFilters.size(); ++i)
+                addCandidate(mWithNodeFilters.get(i));
+        }
+
+        for (int i = 0; i < mCandidates.size(); ++i) {
+            Trigger trigger = mCandidates.get(i);
+            if (!trigger.getInteractionIDs().isEmpty())
+                continue;
+            boolean active = conditionsHold(trigger);
+            if (active && !trigger.active) {
+                trigger.active = true;
+                run(trigger);
+            }
+            else if (!active) {
+                trigger.active = false;
+            }
+        }
+
+        if (state.getInteraction() != previous.getInteraction() && !mByInteractionID.isEmpty()) {
+            ++mEvaluation;
+            mCandidates.clear();
+            for (InteractionEventData interaction : state.getInteraction()) {
+                if (interaction.getAndroidID() != null)
+                    addCandidates(mByInteractionID, ViewTreeNode.shortResourceID(interaction.getAndroidID()));
+            }
+            for (int i = 0; i < mCandidates.size(); ++i) {
+                Trigger trigger = mCandidates.get(i);
+                if (interactsWith(trigger, state.getInteraction()) && conditionsHold(trigger))
+                    run(trigger);
+            }
+        }
+        mCandidates.clear();
+    }
+
+    /** Forgets the state evaluated so far, without running any actions */
+    void reset() {
+        mState = ListenerState.INITIAL;
+        mNodeIDs.clear();
+        mShortNodeIDs.clear();
+        mCollectedViewTree = null;
+        mAdded.clear();
+        mAdded.addAll(mTriggers);
+        for (Trigger trigger : mTriggers)
+            trigger.active = false;
+    }
+
+    /** Indicates whether the trigger's conditions, apart from interactions, hold for the current state */
+    private boolean conditionsHold(Trigger trigger) {
+        if (trigger.getActivity() != null && !trigger.getActivity().equals(mState.getActivity()))
+            return false;
+        for (String layout : trigger.getLayouts()) {
+            if (!mState.getLayouts().contains(layout))
+                return false;
+        }
+        if (!trigger.getNodeIDs().isEmpty()) {
+            ViewTreeNode viewTree = mState.getViewTree();
+            if (viewTree == null)
+                return false;
+            // Most missing nodes are ruled out by the tree's Bloom filter
+            for (String resourceID : trigger.getNodeIDs()) {
+                if (!viewTree.mightContainResourceID(resourceID))
+                    return false;
+            }
+            collectNodeIDs();
+        }
+        for (String resourceID : trigger.getNodeIDs()) {
+            if (resourceID.indexOf(':') >= 0 ? !mNodeIDs.contains(resourceID)
+                    : !mShortNodeIDs.contains(ViewTreeNode.shortResourceID(resourceID)))
+                return false;
+        }
+        if (!trigger.getNodeFilters().isEmpty()) {
+            ViewTreeNode viewTree = mState.getViewTree();
+            if (viewTree == null)
+                return false;
+            for (ViewTreeNode.Filter filter : trigger.getNodeFilters()) {
+                if (!viewTree.hasNode(filter))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether the interaction concerns an element given by the trigger, as
+     * candidates are only looked up by entry name
+     */
+    private static boolean interactsWith(Trigger trigger, List<InteractionEventData> interaction) {
+        for (InteractionEventData element : interaction) {
+            for (String resourceID : trigger.getInteractionIDs()) {
+                if (ViewTreeNode.matchesResourceID(element.getAndroidID(), resourceID))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void run(Trigger trigger) {
+        try {
+            trigger.getAction().onTriggered(trigger, mState.getViewTree());
+        } catch (RuntimeException e) {
+            Log.e("TriggerEngine", "Action of " + trigger + " failed", e);
+        }
+    }
+
+    /** View tree whose node IDs have been collected last, for tests */
+    ViewTreeNode getCollectedViewTree() {
+        return mCollectedViewTree;
+    }
+
+    /** Collects the resource IDs of all nodes of the current view tree, unless done already */
+    private void collectNodeIDs() {
+        ViewTreeNode viewTree = mState.getViewTree();
+        if (viewTree == mCollectedViewTree)
+            return;
+        mCollectedViewTree = viewTree;
+        mNodeIDs.clear();
+        mShortNodeIDs.clear();
+        if (viewTree == null)
+            return;
+        ArrayList<ViewTreeNode> nodes = new ArrayList<>();
+        nodes.add(viewTree);
+        while (!nodes.isEmpty()) {
+            ViewTreeNode node = nodes.remove(nodes.size() - 1);
+            String resourceID = node.getViewIDResourceName();
+            if (resourceID != null && !resourceID.isEmpty()) {
+                mNodeIDs.add(resourceID);
+                mShortNodeIDs.add(ViewTreeNode.shortResourceID(resourceID));
+            }
+            nodes.addAll(node.getChildren());
+        }
+    }
+
+    private void addCandidates(Map<String, List<Trigger>> table, String key) {
+        List<Trigger> triggers = table.get(key);
+        if (triggers == null)
+            return;
+        for (int i = 0; i < triggers.size(); ++i)
+            addCandidate(triggers.get(i));
+    }
+
+    private void addCandidate(Trigger trigger) {
+        if (trigger.evaluation == mEvaluation)
+            return;
+        trigger.evaluation = mEvaluation;
+        mCandidates.add(trigger);
+    }
+
+    private static void put(Map<String, List<Trigger>> table, String key, Trigger trigger) {
+        List<Trigger> triggers = table.get(key);
+        if (triggers == null) {
+            triggers = new ArrayList<>(1);
+            table.put(key, triggers);
+        }
+        if (!triggers.contains(trigger))
+            triggers.add(trigger);
+    }
+
+    private static void removeFrom(Map<String, List<Trigger>> table, Trigger trigger) {
+        for (Iterator<List<Trigger>> it = table.values().iterator(); it.hasNext(); ) {
+            List<Trigger> triggers = it.next();
+            triggers.remove(trigger);
+            if (triggers.isEmpty())
+                it.remove();
+        }
+    }
+
+}
@@ -212,6 +212,12 @@ public class ViewTreeNode implements Parcelable {
     private boolean selected;
     private boolean visibleToUser;
 
+    /**
+     * Resource IDs of this subtree, not parcelled, built on first query or sent by the core.
+     * Volatile, as view trees are shared with other threads through ListenerState.
+     */
+    private volatile BloomFilter resourceIDFilter;
+
     /**
      * Returns this node without any parent or children references
      */
@@ -309,6 +315,99 @@ public class ViewTreeNode implements Parcelable {
         return result;
     }
 
+    /**
+     * Indicates whether a node of this subtree might have the given resource ID, without
+     * walking the tree (except once to build a Bloom filter on the first query, unless it
+     * has been sent by Coast Dove core)
+     * @param resourceID    ViewIDResourceName ("com.example:id/button"), Android ID
+     *                      ("id/button") or entry name ("button") of the node
+     * @return False if there is definitely no such node, true if there probably is
+     */
+    public boolean mightContainResourceID(String resourceID) {
+        return getResourceIDFilter().mightContain(resourceID, resourceID.lastIndexOf('/') + 1, resourceID.length());
+    }
+
+    /**
+     * Indicates whether a node of this subtree has the given resource ID. Answered by a
+     * Bloom filter if there is no such node, otherwise by walking the tree.
+     * @param resourceID    ViewIDResourceName, Android ID or entry name of the node
+     */
+    public boolean containsResourceID(final String resourceID) {
+        if (!mightContainResourceID(resourceID))
+            return false;
+        return hasNode(new Filter() {
+            @Override
+            public boolean filter(ViewTreeNode node) {
+                return matchesResourceID(node.viewIDResourceName, resourceID);
+            }
+        });
+    }
+
+    /**
+     * Returns the Bloom filter of the resource IDs of this subtree, building it if needed.
+     * Threads racing to build it build equal filters, so either one may be kept.
+     */
+    BloomFilter getResourceIDFilter() {
+        BloomFilter filter = resourceIDFilter;
+        if (filter == null) {
+            filter = buildResourceIDFilter(this);
+            resourceIDFilter = filter;
+        }
+        return filter;
+    }
+
+    /** Sets the Bloom filter of this subtree, e.g., as sent by Coast Dove core */
+    void setResourceIDFilter(BloomFilter filter) {
+        resourceIDFilter = filter;
+    }
+
+    /** Builds a Bloom filter of the entry names of the resource IDs of the given tree */
+    static BloomFilter buildResourceIDFilter(ViewTreeNode viewTree) {
+        BloomFilter filter = new BloomFilter(viewTree.getNodeCount());
+        ArrayList<ViewTreeNode> nodes = new ArrayList<>();
+        nodes.add(viewTree);
+        while (!nodes.isEmpty()) {
+            ViewTreeNode node = nodes.remove(nodes.size() - 1);
+            String name = node.viewIDResourceName;
+            if (name != null && !name.isEmpty())
+                filter.add(name, name.lastIndexOf('/') + 1, name.length());
+            nodes.addAll(node.children);
+        }
+        return filter;
+    }
+
+    /**
+     * Returns the entry name of a resource ID, i.e., the part after the last '/', e.g.,
+     * "button" for "com.example:id/button" or "id/button"
+     */
+    static String shortResourceID(String resourceID) {
+        int slash = resourceID.lastIndexOf('/');
+        return slash >= 0 ? resourceID.substring(slash + 1) : resourceID;
+    }
+
+    /**
+     * Indicates whether a node's ViewIDResourceName matches the given resource ID, i.e.,
+     * has the same entry name and, if the resource ID has a package, the same package
+     */
+    static boolean matchesResourceID(String viewIDResourceName, String resourceID) {
+        if (viewIDResourceName == null)
+            return false;
+        if (resourceID.indexOf(':') >= 0)
+            return viewIDResourceName.equals(resourceID);
+        return shortResourceID(viewIDResourceName).equals(shortResourceID(resourceID));
+    }
+
+    /**
+     * Counts the nodes in this tree, including this node
+     * @return Number of nodes in the subtree rooted at this node
+     */
+    public int getNodeCount() {
+        int count = 1;
+        for (ViewTreeNode child : children)
+            count += child.getNodeCount();
+        return count;
+    }
+
     public ViewTreeNode getParent() {
         return parent;
     }
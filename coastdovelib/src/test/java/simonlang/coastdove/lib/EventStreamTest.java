@@ -0,0 +1,176 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventStreamTest {
+    /** Records events and completion, requesting nothing by itself */
+    private static class Recorder<T> implements EventStream.Subscriber<T> {
+        final List<Object> received = new ArrayList<>();
+        EventStream.Subscription subscription;
+
+        @Override
+        public void onSubscribe(EventStream.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(T event) {
+            received.add(event);
+        }
+
+        @Override
+        public void onComplete() {
+            received.add("done");
+        }
+    }
+
+    @Test
+    public void buffersUntilRequested() {
+        EventPublisher<Integer> publisher = new EventPublisher<>(2);
+        Recorder<Integer> recorder = new Recorder<>();
+        publisher.subscribe(recorder);
+        publisher.publish(1);
+        publisher.publish(2);
+        publisher.publish(3);
+        assertTrue(recorder.received.isEmpty());
+
+        recorder.subscription.request(1);
+        assertEquals(Arrays.<Object>asList(2), recorder.received);
+        publisher.complete();
+        recorder.subscription.request(5);
+        assertEquals(Arrays.<Object>asList(2, 3, "done"), recorder.received);
+        assertFalse(publisher.hasSubscribers());
+    }
+
+    @Test
+    public void nullEvents() {
+        EventPublisher<String> publisher = new EventPublisher<>();
+        Recorder<String> recorder = new Recorder<>();
+        publisher.subscribe(recorder);
+        publisher.publish(null);
+        publisher.publish("a");
+        recorder.subscription.request(1);
+        assertEquals(Arrays.<Object>asList((Object)null), recorder.received);
+        recorder.subscription.request(1);
+        publisher.publish(null);
+        assertEquals(Arrays.<Object>asList(null, "a"), recorder.received);
+
+        Recorder<String> distinct = new Recorder<>();
+        publisher.distinctUntilChanged().subscribe(distinct);
+        distinct.subscription.request(Long.MAX_VALUE);
+        publisher.publish(null);
+        publisher.publish(null);
+        publisher.publish("b");
+        assertEquals(Arrays.<Object>asList(null, "b"), distinct.received);
+    }
+
+    @Test
+    public void completionMayReenterPublisher() {
+        final EventPublisher<Integer> publisher = new EventPublisher<>();
+        final List<Boolean> subscribed = new ArrayList<>();
+        publisher.subscribe(new Recorder<Integer>() {
+            @Override
+            public void onComplete() {
+                // Called outside the subscription's lock, so other threads are not blocked
+                subscribed.add(publisher.hasSubscribers());
+            }
+        });
+        publisher.complete();
+        assertEquals(Arrays.asList(false), subscribed);
+    }
+
+    @Test
+    public void filterAndWindow() {
+        EventPublisher<Integer> publisher = new EventPublisher<>();
+        Recorder<List<Integer>> recorder = new Recorder<>();
+        publisher.filter(new EventStream.Predicate<Integer>() {
+            @Override
+            public boolean test(Integer event) {
+                return event % 2 == 0;
+            }
+        }).window(2).subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+        for (int i = 0; i < 9; ++i)
+            publisher.publish(i);
+        publisher.complete();
+        assertEquals(Arrays.<Object>asList(Arrays.asList(0, 2), Arrays.asList(4, 6), Arrays.asList(8), "done"),
+                recorder.received);
+    }
+
+    @Test
+    public void windowTailWaitsForDemand() {
+        EventPublisher<Integer> publisher = new EventPublisher<>();
+        Recorder<List<Integer>> recorder = new Recorder<>();
+        publisher.window(2).subscribe(recorder);
+        recorder.subscription.request(1);
+        publisher.publish(1);
+        publisher.publish(2);
+        assertEquals(Arrays.<Object>asList(Arrays.asList(1, 2)), recorder.received);
+
+        // Events beyond the demand stay buffered upstream
+        publisher.publish(3);
+        assertEquals(1, recorder.received.size());
+        recorder.subscription.request(1);
+        publisher.complete();
+        assertEquals(Arrays.<Object>asList(Arrays.asList(1, 2), Arrays.asList(3), "done"), recorder.received);
+    }
+
+    @Test
+    public void windowTailHeldWithoutDemand() {
+        final List<Integer> upstreamRequests = new ArrayList<>();
+        final EventStream.Subscriber<?>[] upstreamSubscriber = new EventStream.Subscriber<?>[1];
+        // Source that emits regardless of demand, so the window operator has to hold back
+        EventStream<Integer> source = new EventStream<Integer>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void subscribe(Subscriber<? super Integer> subscriber) {
+                upstreamSubscriber[0] = subscriber;
+                subscriber.onSubscribe(new Subscription() {
+                    @Override
+                    public void request(long n) {
+                        upstreamRequests.add((int)Math.min(n, Integer.MAX_VALUE));
+                    }
+
+                    @Override
+                    public void cancel() { }
+                });
+            }
+        };
+        Recorder<List<Integer>> recorder = new Recorder<>();
+        source.window(3).subscribe(recorder);
+        @SuppressWarnings("unchecked")
+        EventStream.Subscriber<Integer> upstream = (EventStream.Subscriber<Integer>)upstreamSubscriber[0];
+        upstream.onNext(1);
+        upstream.onComplete();
+        assertTrue(recorder.received.isEmpty());
+
+        recorder.subscription.request(1);
+        assertEquals(Arrays.<Object>asList(Arrays.asList(1), "done"), recorder.received);
+        assertTrue(upstreamRequests.isEmpty());
+    }
+}
@@ -0,0 +1,91 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HistoryBufferTest {
+    @Test
+    public void dwellTimesUntilNow() {
+        HistoryBuffer<String> buffer = new HistoryBuffer<>(4);
+        buffer.add(10L, "a");
+        buffer.add(30L, "b");
+        buffer.add(35L, "a");
+        Map<String, Long> dwellTimes = buffer.getDwellTimes(50L);
+        assertEquals(Long.valueOf(35L), dwellTimes.get("a"));
+        assertEquals(Long.valueOf(5L), dwellTimes.get("b"));
+    }
+
+    @Test
+    public void pausedTimeIsLeftOut() {
+        HistoryBuffer<String> buffer = new HistoryBuffer<>(4);
+        buffer.add(10L, "a");
+        buffer.pause(20L);
+        assertEquals(Long.valueOf(10L), buffer.getDwellTimes(100L).get("a"));
+
+        buffer.resume(90L);
+        assertEquals(Long.valueOf(20L), buffer.getDwellTimes(100L).get("a"));
+
+        buffer.add(100L, "b");
+        buffer.pause(105L);
+        buffer.pause(110L);
+        Map<String, Long> dwellTimes = buffer.getDwellTimes(200L);
+        assertEquals(Long.valueOf(20L), dwellTimes.get("a"));
+        assertEquals(Long.valueOf(5L), dwellTimes.get("b"));
+    }
+
+    @Test
+    public void addedWhilePausedAccruesAfterResume() {
+        HistoryBuffer<String> buffer = new HistoryBuffer<>(4);
+        buffer.pause(0L);
+        buffer.add(10L, "a");
+        assertEquals(Long.valueOf(0L), buffer.getDwellTimes(50L).get("a"));
+        buffer.resume(40L);
+        assertEquals(Long.valueOf(10L), buffer.getDwellTimes(50L).get("a"));
+    }
+
+    @Test
+    public void olderTimestampsAreRaised() {
+        HistoryBuffer<String> buffer = new HistoryBuffer<>(4);
+        buffer.add(10L, "a");
+        buffer.add(30L, "b");
+        buffer.add(20L, "c");
+        assertEquals(30L, buffer.getTimestamp(0));
+        assertEquals(Arrays.asList("c", "b"), buffer.getSince(30L));
+        assertEquals(Long.valueOf(0L), buffer.getDwellTimes(30L).get("b"));
+    }
+
+    @Test
+    public void oldestEntriesAreOverwritten() {
+        HistoryBuffer<String> buffer = new HistoryBuffer<>(2);
+        buffer.add(1L, "a");
+        buffer.add(2L, "b");
+        buffer.add(3L, "c");
+        assertEquals(2, buffer.size());
+        assertEquals("c", buffer.get(0));
+        assertEquals("b", buffer.get(1));
+        assertNull(buffer.getDwellTimes(4L).get("a"));
+    }
+}
@@ -0,0 +1,164 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class LayoutSetTest {
+    /** Random layout names out of a small pool, so that sets overlap */
+    private static String[] randomLayouts(Random random, int maxCount) {
+        String[] result = new String[random.nextInt(maxCount + 1)];
+        for (int i = 0; i < result.length; ++i)
+            result[i] = random.nextInt(10) == 0 ? null : "layout_" + random.nextInt(maxCount * 2);
+        return result;
+    }
+
+    private static Set<String> oracle(String[] layouts) {
+        Set<String> result = new HashSet<>(Arrays.asList(layouts));
+        result.remove(null);
+        return result;
+    }
+
+    @Test
+    public void sortsAndRemovesDuplicatesAndNulls() {
+        LayoutSet set = LayoutSet.of("b", null, "a", "b", "c");
+        assertEquals(3, set.size());
+        assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(set));
+        assertEquals("b", set.get(1));
+    }
+
+    @Test
+    public void ofCopiesTheArray() {
+        String[] layouts = {"b", "a"};
+        LayoutSet set = LayoutSet.of(layouts);
+        assertArrayEquals(new String[] {"b", "a"}, layouts);
+        layouts[0] = "c";
+        assertFalse(set.contains("c"));
+    }
+
+    @Test
+    public void containsMatchesHashSet() {
+        Random random = new Random(42L);
+        // Up to 64 elements, so that sets with and without a Bloom filter are covered
+        for (int round = 0; round < 500; ++round) {
+            String[] layouts = randomLayouts(random, 64);
+            Set<String> expected = oracle(layouts);
+            LayoutSet set = LayoutSet.of(layouts);
+            assertEquals(expected.size(), set.size());
+            for (int i = 0; i < 128; ++i) {
+                String layout = "layout_" + i;
+                assertEquals(layout, expected.contains(layout), set.contains(layout));
+            }
+            assertFalse(set.contains(null));
+            assertFalse(set.contains(1));
+        }
+    }
+
+    @Test
+    public void containsWithFilterBits() {
+        String[] layouts = new String[40];
+        for (int i = 0; i < layouts.length; ++i)
+            layouts[i] = "layout_" + i;
+        long[] filterBits = LayoutSet.filterBits(layouts);
+        assertNotNull(filterBits);
+        LayoutSet set = LayoutSet.wrap(layouts.clone(), filterBits);
+        for (int i = 0; i < 80; ++i)
+            assertEquals(i < 40, set.contains("layout_" + i));
+        assertNull(LayoutSet.filterBits(new String[] {"a", "b"}));
+    }
+
+    @Test
+    public void equalsAndHashCodeMatchHashSet() {
+        Random random = new Random(7L);
+        for (int round = 0; round < 500; ++round) {
+            String[] layouts = randomLayouts(random, 20);
+            Set<String> expected = oracle(layouts);
+            LayoutSet set = LayoutSet.of(layouts);
+            assertEquals(expected, set);
+            assertEquals(set, expected);
+            assertEquals(expected.hashCode(), set.hashCode());
+
+            List<String> shuffled = new ArrayList<>(expected);
+            Collections.shuffle(shuffled, random);
+            LayoutSet other = new LayoutSet(shuffled);
+            assertEquals(set, other);
+            assertEquals(set.hashCode(), other.hashCode());
+        }
+        assertNotEquals(LayoutSet.of("a"), LayoutSet.of("a", "b"));
+        assertNotEquals(LayoutSet.of("a"), new TreeSet<>(Arrays.asList("b")));
+    }
+
+    @Test
+    public void minusMatchesHashSet() {
+        Random random = new Random(3L);
+        for (int round = 0; round < 2000; ++round) {
+            LayoutSet lhs = LayoutSet.of(randomLayouts(random, 20));
+            LayoutSet rhs = LayoutSet.of(randomLayouts(random, 20));
+            Set<String> expected = new HashSet<>(lhs);
+            expected.removeAll(rhs);
+            LayoutSet result = lhs.minus(rhs);
+            assertEquals(expected, result);
+            assertEquals(new ArrayList<>(new TreeSet<>(expected)), new ArrayList<>(result));
+            if (expected.size() == lhs.size())
+                assertSame(lhs, result);
+        }
+    }
+
+    @Test
+    public void minusEdgeCases() {
+        LayoutSet set = LayoutSet.of("a", "b");
+        assertSame(set, set.minus(LayoutSet.EMPTY));
+        assertSame(set, set.minus(LayoutSet.of("c")));
+        assertSame(LayoutSet.EMPTY, LayoutSet.EMPTY.minus(set));
+        assertSame(LayoutSet.EMPTY, set.minus(set));
+        assertSame(LayoutSet.EMPTY, set.minus(LayoutSet.of("a", "b", "c")));
+        assertEquals(LayoutSet.of("b"), set.minus(LayoutSet.of("a")));
+    }
+
+    @Test
+    public void emptySets() {
+        assertSame(LayoutSet.EMPTY, LayoutSet.of());
+        assertSame(LayoutSet.EMPTY, LayoutSet.wrap(null));
+        assertSame(LayoutSet.EMPTY, LayoutSet.wrap(new String[0], null));
+        assertTrue(LayoutSet.EMPTY.isEmpty());
+        assertFalse(LayoutSet.EMPTY.contains("a"));
+        assertFalse(LayoutSet.EMPTY.iterator().hasNext());
+        assertEquals(0, LayoutSet.EMPTY.hashCode());
+        assertEquals(LayoutSet.EMPTY, new LayoutSet(Collections.<String>emptyList()));
+        assertEquals(LayoutSet.EMPTY, LayoutSet.of((String)null));
+        assertEquals(Collections.emptySet(), LayoutSet.EMPTY);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void immutable() {
+        LayoutSet.of("a").add("b");
+    }
+}
@@ -0,0 +1,128 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class PackageFilterTest {
+    private static PackageFilter filter(String... patterns) {
+        return new PackageFilter(Arrays.asList(patterns));
+    }
+
+    @Test
+    public void wildcardOnly() {
+        PackageFilter filter = filter("*");
+        assertTrue(filter.matchesAll());
+        assertTrue(filter.matches(""));
+        assertTrue(filter.matches("com.example"));
+        assertFalse(filter.matches(null));
+        assertTrue(filter("**").matchesAll());
+    }
+
+    @Test
+    public void exactName() {
+        PackageFilter filter = filter("com.example");
+        assertFalse(filter.matchesAll());
+        assertTrue(filter.matches("com.example"));
+        assertFalse(filter.matches("com.example.app"));
+        assertFalse(filter.matches("com.exampl"));
+        assertFalse(filter.matches("com.examplf"));
+    }
+
+    @Test
+    public void wildcardInBetween() {
+        PackageFilter filter = filter("a.*.b");
+        assertTrue(filter.matches("a.x.b"));
+        assertTrue(filter.matches("a.x.y.b"));
+        assertTrue(filter.matches("a..b"));
+        assertTrue(filter.matches("a.b.b"));
+        assertFalse(filter.matches("a.b"));
+        assertFalse(filter.matches("a.x.bc"));
+        assertFalse(filter.matches("b.x.b"));
+    }
+
+    @Test
+    public void trailingWildcard() {
+        PackageFilter filter = filter("com.example.*");
+        assertTrue(filter.matches("com.example.app"));
+        assertTrue(filter.matches("com.example."));
+        assertTrue(filter.matches("com.example.app.debug"));
+        assertFalse(filter.matches("com.example"));
+        assertFalse(filter.matches("com.examples.app"));
+    }
+
+    @Test
+    public void emptyPattern() {
+        PackageFilter filter = filter("");
+        assertFalse(filter.matchesAll());
+        assertTrue(filter.matches(""));
+        assertFalse(filter.matches("a"));
+    }
+
+    @Test
+    public void noPatterns() {
+        PackageFilter filter = new PackageFilter(Collections.<String>emptyList());
+        assertFalse(filter.matchesAll());
+        assertFalse(filter.matches(""));
+        assertFalse(filter.matches("com.example"));
+        assertFalse(filter(null, "com.a").matches("com.b"));
+        assertEquals(Arrays.asList("com.a"), filter(null, "com.a").getPatterns());
+    }
+
+    @Test
+    public void matchesRegexOracle() {
+        Random random = new Random(1L);
+        String patternAlphabet = "ab.*";
+        for (int round = 0; round < 5000; ++round) {
+            List<String> patterns = new ArrayList<>();
+            int count = 1 + random.nextInt(3);
+            for (int i = 0; i < count; ++i) {
+                StringBuilder pattern = new StringBuilder();
+                int length = random.nextInt(6);
+                for (int j = 0; j < length; ++j)
+                    pattern.append(patternAlphabet.charAt(random.nextInt(patternAlphabet.length())));
+                patterns.add(pattern.toString());
+            }
+            PackageFilter filter = new PackageFilter(patterns);
+            // Several names per filter, so that state left over from a match would show
+            for (int k = 0; k < 4; ++k) {
+                StringBuilder name = new StringBuilder();
+                int length = random.nextInt(7);
+                for (int j = 0; j < length; ++j)
+                    name.append("ab.".charAt(random.nextInt(3)));
+                boolean expected = false;
+                for (String pattern : patterns) {
+                    String regex = Pattern.quote(pattern).replace("*", "\\E.*\\Q");
+                    expected |= name.toString().matches(regex);
+                }
+                assertEquals(patterns + " / " + name, expected, filter.matches(name.toString()));
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class SubstringIndexTest {
+    private static boolean naiveContainsSubstring(List<String> strings, String query) {
+        for (String string : strings) {
+            if (string != null && string.contains(query))
+                return true;
+        }
+        return false;
+    }
+
+    private static String randomString(Random random, int maxLength, int alphabet) {
+        char[] chars = new char[random.nextInt(maxLength + 1)];
+        for (int i = 0; i < chars.length; ++i)
+            chars[i] = (char)('a' + random.nextInt(alphabet));
+        return new String(chars);
+    }
+
+    @Test
+    public void matchesNaiveContains() {
+        Random random = new Random(42L);
+        for (int round = 0; round < 300; ++round) {
+            // Small alphabets produce many repeated substrings and thus cloned states
+            int alphabet = 1 + random.nextInt(4);
+            List<String> strings = new ArrayList<>();
+            int count = random.nextInt(6);
+            for (int i = 0; i < count; ++i)
+                strings.add(random.nextInt(8) == 0 ? null : randomString(random, 12, alphabet));
+            SubstringIndex index = new SubstringIndex(strings);
+
+            for (int i = 0; i < 200; ++i) {
+                String query = randomString(random, 6, alphabet + 1);
+                assertEquals(strings + " / " + query,
+                        naiveContainsSubstring(strings, query), index.containsSubstring(query));
+            }
+            // Every substring of an indexed string must be found
+            for (String string : strings) {
+                if (string == null)
+                    continue;
+                for (int start = 0; start <= string.length(); ++start) {
+                    for (int end = start; end <= string.length(); ++end)
+                        assertTrue(index.containsSubstring(string.substring(start, end)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void emptyIndex() {
+        SubstringIndex index = new SubstringIndex(Collections.<String>emptyList());
+        assertFalse(index.containsSubstring(""));
+        assertFalse(index.containsSubstring("a"));
+        index = new SubstringIndex(Arrays.asList((String)null));
+        assertFalse(index.containsSubstring(""));
+    }
+
+    @Test
+    public void emptyStringIsSubstringOfAny() {
+        SubstringIndex index = new SubstringIndex(Arrays.asList(""));
+        assertTrue(index.containsSubstring(""));
+        assertFalse(index.containsSubstring("a"));
+    }
+
+    @Test
+    public void mainActivities() {
+        AppMetaInformation info = new AppMetaInformation("com.example",
+                Arrays.asList("com.example/.MainActivity", "com.example/.SettingsActivity"));
+        assertTrue(info.isMainActivity("com.example/.MainActivity"));
+        assertTrue(info.isMainActivity(".Main"));
+        assertTrue(info.isMainActivity("SettingsActivity"));
+        assertFalse(info.isMainActivity("com.example/.OtherActivity"));
+        assertFalse(info.isMainActivity(null));
+    }
+
+    @Test
+    public void mainActivitiesAfterDeserialization() throws Exception {
+        TreeSet<String> mainActivities = new TreeSet<>(new CollatorWrapper());
+        mainActivities.add("com.example/.MainActivity");
+        mainActivities.add("com.example/.AliasActivity");
+        AppMetaInformation info = new AppMetaInformation("com.example", mainActivities);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(info);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        AppMetaInformation deserialized = (AppMetaInformation)in.readObject();
+
+        assertEquals("com.example", deserialized.getAppPackageName());
+        assertEquals(new ArrayList<>(mainActivities), new ArrayList<>(deserialized.getMainActivities()));
+        // The index is transient, so the first query rebuilds it
+        assertTrue(deserialized.isMainActivity("com.example/.AliasActivity"));
+        assertTrue(deserialized.isMainActivity("Main"));
+        assertFalse(deserialized.isMainActivity("com.example/.OtherActivity"));
+    }
+}
@@ -0,0 +1,212 @@
+/*  Coast Dove
+    Copyright (C) 2016  Simon Lang
+    Contact: simon.lang7 at gmail dot com
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package simonlang.coastdove.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TriggerEngineTest {
+    private List<String> mFired;
+    private Trigger.Action mAction;
+    private TriggerEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mFired = new ArrayList<>();
+        mAction = new Trigger.Action() {
+            @Override
+            public void onTriggered(Trigger trigger, ViewTreeNode viewTree) {
+                mFired.add(trigger.getName());
+            }
+        };
+        mEngine = new TriggerEngine();
+    }
+
+    private static ViewTreeNode node(String resourceID, ViewTreeNode... children) {
+        ViewTreeNode node = new ViewTreeNode();
+        node.setViewIDResourceName(resourceID);
+        node.setChildren(new ArrayList<>(Arrays.asList(children)));
+        return node;
+    }
+
+    private static List<InteractionEventData> interaction(String androidID) {
+        return Arrays.asList(new InteractionEventData(androidID, "", "", "android.widget.Button"));
+    }
+
+    @Test
+    public void firesOnceWhenConditionsBecomeTrue() {
+        mEngine.add(new Trigger("t", mAction).whenActivity("A").whenLayout("L"));
+        ListenerState state = ListenerState.INITIAL.withActivity("A");
+        mEngine.update(state);
+        assertTrue(mFired.isEmpty());
+
+        state = state.withLayouts(LayoutSet.of("L", "M"));
+        mEngine.update(state);
+        assertEquals(Arrays.asList("t"), mFired);
+
+        // Still true: not fired again
+        state = state.withLayouts(LayoutSet.of("L", "N"));
+        mEngine.update(state);
+        state = state.withNotification("n");
+        mEngine.update(state);
+        assertEquals(1, mFired.size());
+    }
+
+    @Test
+    public void firesAgainAfterLayoutRemoved() {
+        Trigger trigger = new Trigger("t", mAction).whenLayout("L");
+        mEngine.add(trigger);
+        ListenerState state = ListenerState.INITIAL.withLayouts(LayoutSet.of("L"));
+        mEngine.update(state);
+        assertTrue(trigger.isActive());
+
+        state = state.withLayouts(LayoutSet.of("M"));
+        mEngine.update(state);
+        assertFalse(trigger.isActive());
+
+        state = state.withLayouts(LayoutSet.of("K", "L"));
+        mEngine.update(state);
+        assertEquals(Arrays.asList("t", "t"), mFired);
+    }
+
+    @Test
+    public void activityChangeDeactivates() {
+        Trigger trigger = new Trigger("t", mAction).whenActivity("A");
+        mEngine.add(trigger);
+        mEngine.update(ListenerState.INITIAL.withActivity("A"));
+        mEngine.update(ListenerState.INITIAL.withActivity("B"));
+        assertFalse(trigger.isActive());
+        mEngine.update(ListenerState.INITIAL.withActivity("A"));
+        assertEquals(2, mFired.size());
+    }
+
+    @Test
+    public void triggerAddedWhileTrueFiresOnNextEvent() {
+        ListenerState state = ListenerState.INITIAL.withActivity("A");
+        mEngine.update(state);
+        mEngine.add(new Trigger("t", mAction).whenActivity("A"));
+        mEngine.update(state.withNotification("n"));
+        assertEquals(Arrays.asList("t"), mFired);
+    }
+
+    @Test
+    public void nodeConditions() {
+        mEngine.add(new Trigger("short", mAction).whenNode("id/ok"));
+        mEngine.add(new Trigger("full", mAction).whenNode("com.a:id/ok"));
+        ListenerState state = ListenerState.INITIAL.withViewTree(node("com.b:id/root", node("com.b:id/ok")));
+        mEngine.update(state);
+        assertEquals(Arrays.asList("short"), mFired);
+
+        mEngine.update(state.withViewTree(node("com.a:id/root", node("com.a:id/ok"))));
+        assertEquals(Arrays.asList("short", "full"), mFired);
+    }
+
+    @Test
+    public void nodeIDsNotCollectedWhenFilterRulesTreeOut() {
+        mEngine.add(new Trigger("t", mAction).whenNode("com.a:id/ok"));
+        ViewTreeNode viewTree = node("com.a:id/root", node("com.a:id/cancel"), node("com.a:id/title"));
+        // Empty filter: rules out every resource ID, whatever the nodes are
+        viewTree.setResourceIDFilter(new BloomFilter(4));
+        mEngine.update(ListenerState.INITIAL.withViewTree(viewTree));
+        assertNull(mEngine.getCollectedViewTree());
+        assertTrue(mFired.isEmpty());
+
+        ViewTreeNode withNode = node("com.a:id/root", node("com.a:id/ok"));
+        mEngine.update(ListenerState.INITIAL.withViewTree(withNode));
+        assertSame(withNode, mEngine.getCollectedViewTree());
+        assertEquals(Arrays.asList("t"), mFired);
+    }
+
+    @Test
+    public void nodeRemovalDeactivates() {
+        Trigger trigger = new Trigger("t", mAction).whenNode("ok");
+        mEngine.add(trigger);
+        ListenerState state = ListenerState.INITIAL.withViewTree(node("com.a:id/root", node("com.a:id/ok")));
+        mEngine.update(state);
+        assertTrue(trigger.isActive());
+
+        state = state.withViewTree(node("com.a:id/root"));
+        mEngine.update(state);
+        assertFalse(trigger.isActive());
+        state = state.withViewTree(null);
+        mEngine.update(state);
+        state = state.withViewTree(node("com.a:id/ok"));
+        mEngine.update(state);
+        assertEquals(Arrays.asList("t", "t"), mFired);
+    }
+
+    @Test
+    public void interactionFiresForEachMatchingInteraction() {
+        mEngine.add(new Trigger("t", mAction).whenActivity("A").whenInteraction("ok"));
+        ListenerState state = ListenerState.INITIAL.withActivity("A");
+        mEngine.update(state);
+        assertTrue(mFired.isEmpty());
+
+        state = state.withInteraction(interaction("com.a:id/ok"));
+        mEngine.update(state);
+        state = state.withInteraction(interaction("com.a:id/ok"));
+        mEngine.update(state);
+        state = state.withInteraction(interaction("com.a:id/cancel"));
+        mEngine.update(state);
+        assertEquals(Arrays.asList("t", "t"), mFired);
+
+        // Other conditions must hold
+        state = state.withActivity("B").withInteraction(interaction("com.a:id/ok"));
+        mEngine.update(state);
+        assertEquals(2, mFired.size());
+    }
+
+    @Test
+    public void interactionWithPackageChecksPackage() {
+        mEngine.add(new Trigger("t", mAction).whenInteraction("com.a:id/ok"));
+        mEngine.update(ListenerState.INITIAL.withInteraction(interaction("com.b:id/ok")));
+        assertTrue(mFired.isEmpty());
+        mEngine.update(ListenerState.INITIAL.withInteraction(interaction("com.a:id/ok")));
+        assertEquals(Arrays.asList("t"), mFired);
+    }
+
+    @Test
+    public void removedTriggerDoesNotFire() {
+        Trigger trigger = new Trigger("t", mAction).whenActivity("A");
+        mEngine.add(trigger);
+        mEngine.remove(trigger);
+        mEngine.update(ListenerState.INITIAL.withActivity("A"));
+        assertTrue(mFired.isEmpty());
+        assertEquals(0, mEngine.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void triggerWithoutConditions() {
+        mEngine.add(new Trigger("t", mAction));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addedTriggerCannotChange() {
+        Trigger trigger = new Trigger("t", mAction).whenActivity("A");
+        mEngine.add(trigger);
+        trigger.whenLayout("L");
+    }
+}